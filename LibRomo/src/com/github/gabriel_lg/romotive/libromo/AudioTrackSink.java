@@ -0,0 +1,212 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+
+/**
+ * AudioSink playing to the headphone jack through an android.media.AudioTrack on STREAM_MUSIC.
+ * <p>
+ * Waiting for audio to be played is driven by the playback head: a notification marker is set
+ * at the end of the written audio. Markers are delivered on the Looper of the thread creating
+ * the sink, which may be busy, so the head position is polled as well, at the moment the audio
+ * is expected to have played.
+ * <p>
+ * From Android 5.0 (API 21) audio is written from direct buffers straight into the AudioTrack,
+ * optionally without blocking. On older versions it is copied through a heap array, and a non
+ * blocking write only writes what fits the free space computed from the playback head.
+ * @author Lambertus Gorter
+ *
+ */
+public class AudioTrackSink implements AudioSink {
+	public static final int SAMPLE_RATE = WaveformBank.SAMPLE_RATE;
+
+	private final AudioTrack audioTrack;
+	private final int sampleRate;
+	private final int bufferShorts;
+	private short[] scratch = new short[0];
+	private final Object marker = new Object();
+	//frames written since play was called on a stopped or flushed track, only touched by the writer
+	private int written = 0;
+	private volatile boolean stopped = true;
+
+	private final AudioTrack.OnPlaybackPositionUpdateListener markerListener = new AudioTrack.OnPlaybackPositionUpdateListener() {
+		@Override
+		public void onMarkerReached(AudioTrack track) {
+			synchronized (marker) {
+				marker.notifyAll();
+			}
+		}
+
+		@Override
+		public void onPeriodicNotification(AudioTrack track) {
+		}
+	};
+
+	/**
+	 * Create an AudioTrack backed sink at 8000Hz.
+	 */
+	public AudioTrackSink() {
+		this(SAMPLE_RATE);
+	}
+
+	/**
+	 * Create an AudioTrack backed sink at the given sample rate. Playing at the native rate of
+	 * the output (see getNativeSampleRate) spares the platform resampling the audio.
+	 * @param sampleRate in Hz
+	 */
+	public AudioTrackSink(int sampleRate) {
+		this.sampleRate = sampleRate;
+		int minBuffer = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+		int bufferBytes = Math.max(new LinkTiming(sampleRate).getFrameShortSize() * 2, minBuffer);
+		bufferShorts = bufferBytes / 2;
+		audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, 
+				AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT,
+				bufferBytes,
+				AudioTrack.MODE_STREAM);
+		audioTrack.setPlaybackPositionUpdateListener(markerListener);
+	}
+
+	/**
+	 * @return the sample rate the platform plays STREAM_MUSIC at, in Hz
+	 */
+	public static int getNativeSampleRate() {
+		return AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+	}
+
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public void play() {
+		if (stopped) written = 0;
+		stopped = false;
+		audioTrack.play();
+	}
+
+	@Override
+	public int write(short[] audioData, int offsetInShorts, int sizeInShorts) {
+		int result = audioTrack.write(audioData, offsetInShorts, sizeInShorts);
+		if (result > 0) written += result / 2;
+		return result;
+	}
+
+	@Override
+	public int write(ByteBuffer audioData, boolean blocking) {
+		int result;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && audioData.isDirect()) {
+			return writeDirect(audioData, blocking);
+		}
+		int shorts = audioData.remaining() / 2;
+		if (!blocking) {
+			//the track holds what was written but not played yet
+			int free = bufferShorts - (written - audioTrack.getPlaybackHeadPosition()) * 2;
+			shorts = Math.max(0, Math.min(shorts, free));
+		}
+		if (scratch.length < shorts) scratch = new short[shorts];
+		audioData.asShortBuffer().get(scratch, 0, shorts);
+		result = write(scratch, 0, shorts);
+		if (result > 0) audioData.position(audioData.position() + result * 2);
+		return result > 0 ? result * 2 : result;
+	}
+
+	/**
+	 * Write from a direct buffer straight into the track. Only to be called from API 21 on.
+	 * @param audioData
+	 * @param blocking
+	 * @return the number of bytes written, or an error code of the AudioTrack
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private int writeDirect(ByteBuffer audioData, boolean blocking) {
+		int result = audioTrack.write(audioData, audioData.remaining(),
+				blocking ? AudioTrack.WRITE_BLOCKING : AudioTrack.WRITE_NON_BLOCKING);
+		if (result > 0) written += result / 4;
+		return result;
+	}
+
+	@Override
+	public int getPlaybackHeadPosition() {
+		return audioTrack.getPlaybackHeadPosition();
+	}
+
+	@Override
+	public boolean awaitPlayed(long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		int end = written;
+		synchronized (marker) {
+			audioTrack.setNotificationMarkerPosition(end);
+			int head;
+			//a flush drops the audio, there is nothing left to wait for
+			while (!stopped && (head = audioTrack.getPlaybackHeadPosition()) < end) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) return false;
+				//poll when the audio should have played, unless the marker comes first
+				long expected = (end - head) * 1000000000L / sampleRate;
+				long waitNs = Math.max(1000000L, Math.min(left, expected));
+				try {
+					marker.wait(waitNs / 1000000, (int) (waitNs % 1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		stopped = true;
+		audioTrack.stop();
+	}
+
+	@Override
+	public void pause() {
+		audioTrack.pause();
+	}
+
+	@Override
+	public void flush() {
+		stopped = true;
+		audioTrack.flush();
+		synchronized (marker) {
+			marker.notifyAll();
+		}
+	}
+
+	@Override
+	public void release() {
+		audioTrack.release();
+	}
+}
@@ -25,17 +25,14 @@
  */
 package com.github.gabriel_lg.romotive.libromo;
 
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.File;
 
 import android.app.Activity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.media.AudioFormat;
 import android.media.AudioManager;
-import android.media.AudioTrack;
 import android.util.Log;
 /**
  * The MotorControl class controls the motors of the Romo. Instanciating this class will create
@@ -52,9 +49,19 @@ import android.util.Log;
  *  <li>Automatically restore the previous STREAM_MUSIC volume when no longer controlling the Romo</li>
  *  <li>Setting an auto repeat interval for your commands</li>
  *  <li>Setting an inter-command gap</li>
+ *  <li>Skipping commands that do not change the speed of a motor</li>
+ *  <li>Ramping the speeds of the motors with limited acceleration and jerk</li>
+ *  <li>Calibrating the speed response of each motor: dead zone, trim, gain curve and direction</li>
+ *  <li>Estimating the pose of the Romo by dead reckoning from the commands sent</li>
+ *  <li>Playing timed sequences of commands, timed by the audio clock</li>
+ *  <li>Recording the latest commands sent, to be dumped to a file on demand or on disconnect</li>
+ *  <li>Batching the commands for several motors into a single write</li>
  *  <li>Pause Motorcontrol and halting the Romo (for when your app looses focus)</li>
  *  <li>Resume Motorcontrol and restoring the previous motor speeds (for when your app regains focus)</li>
  * </ul>
+ * MotorControl is the Android adapter around a CommandScheduler, which does the actual
+ * scheduling and encoding of the commands and does not depend on Android.
+ * <p>
  * <b>NOTE:</b>
  * Please do not change the audio volume of STREAM_MUSIC and do not play sound effects
  * over STREAM_MUSIC while the Romo is connected. This will interfere with MotorControl (Android does
@@ -65,177 +72,62 @@ import android.util.Log;
  */
 public class MotorControl {
 	private static MotorControl instance = null;
-	public static final int SPEED_MAX_FORWARD = 127;
-	public static final int SPEED_MAX_BACKWARD = -127;
-	public static final int SPEED_STOP = 0;
+	public static final int SPEED_MAX_FORWARD = CommandScheduler.SPEED_MAX_FORWARD;
+	public static final int SPEED_MAX_BACKWARD = CommandScheduler.SPEED_MAX_BACKWARD;
+	public static final int SPEED_STOP = CommandScheduler.SPEED_STOP;
+	public static final int MOTOR_LEFT = CommandScheduler.MOTOR_LEFT;
+	public static final int MOTOR_RIGHT = CommandScheduler.MOTOR_RIGHT;
+	public static final int MOTOR_AUX = CommandScheduler.MOTOR_AUX;
+	public static final int MOTOR_ALL = CommandScheduler.MOTOR_ALL;
 	
 	private static final String TAG = MotorControl.class.getName();
-	private static final short HI = Short.MAX_VALUE;
-	private static final short LO = Short.MIN_VALUE;
-	private static final short[] ONE = { HI, HI, HI, HI, HI, HI, HI, HI, LO, HI, LO, HI, LO, HI, LO, HI };
-	private static final short[] ZERO = { HI, LO, HI, LO, HI, LO, HI, LO, LO, LO, LO, LO, LO, LO, LO, LO };
-	private static final int CMD_SHORT_SIZE = 192;
-	private static final int CMD_DURATION_MS = 12;
 
 	private final Activity activity;
 	private final AudioManager manager;
-	private final AudioTrack audioTrack;
-	private final ReentrantLock lock = new ReentrantLock();
-	private final Condition modified = lock.newCondition();
-
-	private long refreshIntervalNs = 0;
-	private long interCmdGapMs = 0;
-	private long nextRefresh = System.nanoTime();
-	private boolean connected = false;
-	private boolean focus = false;
-	private boolean paused = false;
-	private boolean controlling = false;
-
-	private int speedLeft = SPEED_STOP;
-	private int speedRight = SPEED_STOP;
-	private int speedAux = SPEED_STOP;
-	private boolean updateLeft = false;
-	private boolean updateRight = false;
-	private boolean updateAux = false;
+	private final CommandScheduler scheduler;
 	private RomoConnectionListener connectionListener = null;
-	
-	//The thread doing the actual work...
-	private Thread worker = new Thread() {
-		private int lastVolume = 0;
-		
-		public void run() {
-			lock.lock();
-			while (worker != null) {
-				try {
-					if(controlling) {
-						//state: controlling 
-						if(!paused && connected && focus) {
-							if (updateLeft || updateRight || updateAux) {
-								//command left motor
-								int speedLeftBuf = speedLeft;
-								if (updateLeft) {
-									updateLeft = false;
-									lock.unlock();
-									playCommand(1, speedLeftBuf);
-									lock.lock();
-								}
-								//command right motor
-								int speedRightBuf = speedRight;
-								if (updateRight) {
-									updateRight = false;
-									lock.unlock();
-									playCommand(2, speedRightBuf);
-									lock.lock();
-								}
-								//command aux motor
-								int speedAuxBuf = speedAux;
-								if (updateAux) {
-									updateAux = false;
-									lock.unlock();
-									playCommand(3, speedAuxBuf);
-									lock.lock();
-								}
-							} else if (refreshIntervalNs == 0) {
-								modified.await();
-							} else {
-								if (modified.awaitNanos(nextRefresh - System.nanoTime()) <= 0) {
-									nextRefresh += refreshIntervalNs;
-									if( nextRefresh < System.nanoTime()) nextRefresh = System.nanoTime() + refreshIntervalNs;
-									updateLeft = true;
-									updateRight = true;
-									updateAux = true;
-								}
-							}
-						//state changed...
-						}else{
-							if(connected) {
-								lock.unlock();
-								playCommand(1, SPEED_STOP);
-								playCommand(2, SPEED_STOP);
-								playCommand(3, SPEED_STOP);
-								//give the audio subsystem 100ms to allow for playing command
-								sleep(100);
-								lock.lock();
-							}
-							manager.setStreamVolume(AudioManager.STREAM_MUSIC, lastVolume, 0);
-							manager.abandonAudioFocus(audioFocusListener);
-							focus = false;
-							controlling = false;
-						}
-					//state not controlling	
-					}else{
-						if(!paused && connected && focus) {
-							lastVolume = manager.getStreamVolume(AudioManager.STREAM_MUSIC);
-							manager.setStreamVolume(AudioManager.STREAM_MUSIC, manager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0);
-							refresh();
-							controlling = true;
-						}else if(!paused && connected){
-							int result = manager.requestAudioFocus(audioFocusListener, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
-							if(result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
-								focus = true;
-							}else{
-								//request focus again after 1 second
-								modified.awaitNanos(1000*1000000);
-							}
-						}else{
-							modified.await();
-						}
-					}
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					if (!lock.isHeldByCurrentThread())
-						lock.lock();
-				}
-			} //while(worker != null)
-			if(controlling && connected) {
-				playCommand(1, SPEED_STOP);
-				playCommand(2, SPEED_STOP);
-				playCommand(3, SPEED_STOP);
-				//give the audio subsystem 100ms to allow for playing command
-				try {
-					sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				manager.setStreamVolume(AudioManager.STREAM_MUSIC, lastVolume, 0);
-				manager.abandonAudioFocus(audioFocusListener);
-			}
-		}
-	};
 
 	//the callback that will be invoked when MotorControl looses audiofocus
 	private AudioManager.OnAudioFocusChangeListener audioFocusListener = new AudioManager.OnAudioFocusChangeListener() {
 		@Override
 		public void onAudioFocusChange(int focusChange) {
-			lock.lock();
-			focus = (focusChange == AudioManager.AUDIOFOCUS_GAIN);
-			modified.signalAll();
-			lock.unlock();
+			boolean focus = (focusChange == AudioManager.AUDIOFOCUS_GAIN);
+			scheduler.setFocus(focus);
 			Log.d(TAG, "AudioFocus changed to: "+focus);
 		}
 	};
+
+	//Claims and releases STREAM_MUSIC on behalf of the scheduler
+	private CommandScheduler.Host host = new CommandScheduler.Host() {
+		private int lastVolume = 0;
+
+		@Override
+		public boolean requestFocus() {
+			int result = manager.requestAudioFocus(audioFocusListener, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
+			return result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+		}
+
+		@Override
+		public void startControl() {
+			lastVolume = manager.getStreamVolume(AudioManager.STREAM_MUSIC);
+			manager.setStreamVolume(AudioManager.STREAM_MUSIC, manager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0);
+		}
+
+		@Override
+		public void stopControl() {
+			manager.setStreamVolume(AudioManager.STREAM_MUSIC, lastVolume, 0);
+			manager.abandonAudioFocus(audioFocusListener);
+		}
+	};
 	
 	//The broacast receiver that will be invoked whenever the headphone jack is (un)plugged
 	private BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			if (intent.getAction().equalsIgnoreCase(Intent.ACTION_HEADSET_PLUG)) {
-				if (intent.getExtras().getInt("state") == 0) {
-					audioTrack.pause();
-					audioTrack.flush();
-					lock.lock();
-					connected = false;
-					modified.signalAll();
-					lock.unlock();
-					Log.d(TAG, "Romo disconnected");
-				} else {
-					lock.lock();
-					connected = true;
-					refresh();
-					modified.signalAll();
-					lock.unlock();
-					Log.d(TAG, "Romo connected");
-				}
+				final boolean connected = intent.getExtras().getInt("state") != 0;
+				scheduler.setConnected(connected);
+				Log.d(TAG, connected ? "Romo connected" : "Romo disconnected");
 				if(connectionListener != null){
 				activity.runOnUiThread(
 					new Runnable(){
@@ -250,78 +142,125 @@ public class MotorControl {
 	};
 
 	/**
-	 * Set the motor at the given address at the given speed.
-	 * Compensation for the reversed right motor is done here.
-	 * TODO find out what the actual scaling is for the motor speeds.
-	 * Possibilities are:
-	 * - speeds range from 1 to 255, 128 is stop (asumed now).
-	 * - speeds range from 0 to 255, both 127 and 128 are stop.
-	 * - speeds range from 0 to 255, 128 is stop and reverse is in units 1/128 and forward in units of 1/127 
-	 * @param address
-	 * @param speed
+	 * Create a new MotorControl object. The movement object is an Active object, of which only
+	 * a single instance can exist.
+	 * @param activity
+	 * @throws LibRomoRuntimeException if there is already an instance of MotorControl active.
 	 */
-	private void playCommand(int address, int speed) {
-		int cmdSpeed; 
-		if(address != 2) cmdSpeed = 128 + speed;
-		else cmdSpeed = 128 - speed; //right motor is reversed
-		boolean parity = ((Integer.bitCount(address & 0x03) + Integer.bitCount(cmdSpeed & 0xff)) & 1) == 1;
-		short[] sample = new short[CMD_SHORT_SIZE];
-		System.arraycopy(ZERO, 0, sample, 0 * 16, 16);
-		System.arraycopy((address & 0x02) != 0 ? ONE : ZERO, 0, sample, 1 * 16,	16);
-		System.arraycopy((address & 0x01) != 0 ? ONE : ZERO, 0, sample, 2 * 16,	16);
-		System.arraycopy((cmdSpeed & 0x80) != 0 ? ONE : ZERO, 0, sample, 3 * 16, 16);
-		System.arraycopy((cmdSpeed & 0x40) != 0 ? ONE : ZERO, 0, sample, 4 * 16, 16);
-		System.arraycopy((cmdSpeed & 0x20) != 0 ? ONE : ZERO, 0, sample, 5 * 16, 16);
-		System.arraycopy((cmdSpeed & 0x10) != 0 ? ONE : ZERO, 0, sample, 6 * 16, 16);
-		System.arraycopy((cmdSpeed & 0x08) != 0 ? ONE : ZERO, 0, sample, 7 * 16, 16);
-		System.arraycopy((cmdSpeed & 0x04) != 0 ? ONE : ZERO, 0, sample, 8 * 16, 16);
-		System.arraycopy((cmdSpeed & 0x02) != 0 ? ONE : ZERO, 0, sample, 9 * 16, 16);
-		System.arraycopy((cmdSpeed & 0x01) != 0 ? ONE : ZERO, 0, sample, 10 * 16, 16);
-		System.arraycopy(parity ? ONE : ZERO, 0, sample, 11 * 16, 16);
-		audioTrack.play();
-		audioTrack.write(sample, 0, sample.length);
-		audioTrack.stop();
-		try {
-			Thread.sleep(CMD_DURATION_MS + interCmdGapMs);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+	public MotorControl(Activity activity) {
+		this(activity, createSink(AudioTrackSink.SAMPLE_RATE));
 	}
 
 	/**
-	 * Create a new MotorControl object. The movement object is an Active object, of which only
-	 * a single instance can exist.
+	 * Create a new MotorControl object sending to the headphone jack with the given timing,
+	 * e.g. the symbols of the Romo protocol at AudioTrackSink.getNativeSampleRate().
 	 * @param activity
+	 * @param timing
 	 * @throws LibRomoRuntimeException if there is already an instance of MotorControl active.
 	 */
-	public MotorControl(Activity activity) {
+	public MotorControl(Activity activity, LinkTiming timing) {
+		this(activity, createSink(timing.getSampleRate()), timing);
+	}
+
+	/**
+	 * Create a new MotorControl object sending its commands to the given sink instead of
+	 * the headphone jack. The sink is released when the MotorControl object is destroyed,
+	 * or right away if creating it fails.
+	 * @param activity
+	 * @param sink
+	 * @throws LibRomoRuntimeException if there is already an instance of MotorControl active,
+	 * or if the sample rate of the sink is not supported.
+	 */
+	public MotorControl(Activity activity, AudioSink sink) {
+		this(activity, sink, new LinkTiming(sink.getSampleRate()));
+	}
+
+	/**
+	 * Create a new MotorControl object sending its commands to the given sink with the given
+	 * timing. The sink is released when the MotorControl object is destroyed, or right away if
+	 * creating it fails.
+	 * @param activity
+	 * @param sink
+	 * @param timing with the sample rate of the sink
+	 * @throws LibRomoRuntimeException if there is already an instance of MotorControl active,
+	 * or if the sample rate of the sink does not match the timing.
+	 */
+	public MotorControl(Activity activity, AudioSink sink, LinkTiming timing) {
+		this(activity, sink, timing, ProtocolDescriptor.romo());
+	}
+
+	/**
+	 * Create a new MotorControl object driving another robot than the Romo, sending the given
+	 * protocol to the given sink. The sink is released when the MotorControl object is destroyed,
+	 * or right away if creating it fails.
+	 * @param activity
+	 * @param sink
+	 * @param timing with the sample rate of the sink and the symbol count of the protocol
+	 * @param protocol
+	 * @throws LibRomoRuntimeException if there is already an instance of MotorControl active,
+	 * if the sample rate of the sink does not match the timing, or if the protocol is incomplete
+	 * or does not match the timing.
+	 */
+	public MotorControl(Activity activity, AudioSink sink, LinkTiming timing, ProtocolDescriptor protocol) {
 		synchronized(MotorControl.class) {
-			if(instance == null) instance = this;
-			else throw new LibRomoRuntimeException("Destroy the previous instance of this class, before instanciating the next.");
+			if(instance != null) {
+				sink.release();
+				throw alreadyActive();
+			}
+			instance = this;
+		}
+		try {
+			scheduler = new CommandScheduler(sink, host, timing, protocol);
+		} catch (LibRomoRuntimeException e) {
+			sink.release();
+			synchronized(MotorControl.class) {
+				instance = null;
+			}
+			throw e;
 		}
 		this.activity = activity;
 		manager = (AudioManager) activity.getSystemService(Activity.AUDIO_SERVICE);
 		manager.setStreamVolume(AudioManager.STREAM_MUSIC, manager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0);
-		int minBuffer = AudioTrack.getMinBufferSize(8000,AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
-		audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, 8000, 
-				AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT,
-				Math.max(CMD_SHORT_SIZE * 2, minBuffer),
-				AudioTrack.MODE_STREAM);
-		worker.start();
+		scheduler.start();
 		activity.registerReceiver(broadcastReceiver, new IntentFilter(Intent.ACTION_HEADSET_PLUG));
 	}
 	
+	/**
+	 * Create the sink of the headphone jack, failing before the AudioTrack is allocated when
+	 * there is an instance already.
+	 * @param sampleRate
+	 * @return
+	 */
+	private static AudioTrackSink createSink(int sampleRate) {
+		synchronized(MotorControl.class) {
+			if(instance != null) throw alreadyActive();
+		}
+		return new AudioTrackSink(sampleRate);
+	}
+
+	private static LibRomoRuntimeException alreadyActive() {
+		return new LibRomoRuntimeException("Destroy the previous instance of this class, before instanciating the next.");
+	}
+
 	/**
 	 * Destroy the MotorControl object so its resources are freed and the object can be garbage-collected.
 	 */
 	public void destroy() {
-		lock.lock();
 		activity.unregisterReceiver(broadcastReceiver);
 		connectionListener = null;
-		instance = null;
-		worker = null;
-		modified.signalAll();
-		lock.unlock();
+		synchronized(MotorControl.class) {
+			instance = null;
+		}
+		scheduler.destroy();
+	}
+
+	/**
+	 * Get the scheduler doing the actual work, for access to functionality that does not
+	 * depend on Android.
+	 * @return
+	 */
+	public CommandScheduler getScheduler() {
+		return scheduler;
 	}
 
 	/**
@@ -330,20 +269,96 @@ public class MotorControl {
 	 * @param milliseconds
 	 */
 	public void setRefreshInterval(long milliseconds) {
-		lock.lock();
-		refreshIntervalNs = milliseconds * 1000000;
-		long tmp = System.nanoTime() + refreshIntervalNs;
-		if (nextRefresh > tmp) nextRefresh = tmp;
-		modified.signalAll();
-		lock.unlock();
+		scheduler.setRefreshInterval(milliseconds);
 	}
 	
 	/**
 	 * Set the gap (silence) time between commands. Default is 0.
+	 * In OutputMode.CONTINUOUS the gap is written as silence, so it is sample accurate.
 	 * @param milliseconds
 	 */
 	public void setInterCommandGap(long milliseconds) {
-		interCmdGapMs = milliseconds;
+		scheduler.setInterCommandGap(milliseconds);
+	}
+
+	/**
+	 * Skip sending a command when the speed of the motor equals the speed sent last, so
+	 * airtime is only spent on commands that change the motion. Refreshes (see
+	 * setRefreshInterval) are always sent and act as keep-alive. Default is false.
+	 * @param skip
+	 */
+	public void setSkipUnchanged(boolean skip) {
+		scheduler.setSkipUnchanged(skip);
+	}
+
+	/**
+	 * Play a sequence of commands compiled for the timing of the scheduler. The commands are
+	 * timed by the audio clock, to the sample. Only played in OutputMode.CONTINUOUS.
+	 * @param plan
+	 * @return the playback, reporting when each command was put on the link
+	 * @throws LibRomoRuntimeException if the plan was compiled for another timing
+	 */
+	public SequencePlayback play(SequencePlan plan) {
+		return scheduler.play(plan);
+	}
+
+	/**
+	 * Limit the acceleration of the motors in the mask. A speed set for such a motor becomes
+	 * a target the motor is ramped to, by intermediate commands sent in the free slots of the
+	 * link. Ramps are cancelled by an emergency stop, pause or disconnect.
+	 * @param mask a combination of MOTOR_LEFT, MOTOR_RIGHT and MOTOR_AUX
+	 * @param acceleration the maximum change of speed per second, 0 (default) to send speeds
+	 * straight away
+	 * @param jerk the maximum change of acceleration per second squared, 0 for no limit
+	 */
+	public void setMotionLimits(int mask, int acceleration, int jerk) {
+		scheduler.setMotionLimits(mask, acceleration, jerk);
+	}
+
+	/**
+	 * Calibrate the dead zone, trim, gain curve and direction of the motors, e.g. as read
+	 * with SpeedCalibration.read from a file or asset. The calibration costs nothing when
+	 * sending, it is folded into the precomputed frames. The calibration is copied.
+	 * @param calibration
+	 */
+	public void setCalibration(SpeedCalibration calibration) {
+		scheduler.setCalibration(calibration);
+	}
+
+	/**
+	 * Estimate the pose of the Romo by dead reckoning from the commands sent, timed by when
+	 * they take effect at the Romo. Poll the estimate with Odometry.getPose from any thread.
+	 * @param odometry the odometry to feed, null for none
+	 */
+	public void setOdometry(Odometry odometry) {
+		scheduler.setOdometry(odometry);
+	}
+
+	/**
+	 * Apply the output mode, inter-command gap and refresh interval of a profile tuned by
+	 * LinkAutotune, e.g. as read with LinkProfile.read from a file or asset. The timing of the
+	 * profile is to be passed to the constructor.
+	 * @param profile
+	 * @throws LibRomoRuntimeException if this MotorControl was created with another timing
+	 */
+	public void setProfile(LinkProfile profile) {
+		profile.apply(scheduler);
+	}
+
+	/**
+	 * Set the way commands are put on the audio link. Default is OutputMode.COMMAND.
+	 * @param mode
+	 */
+	public void setOutputMode(OutputMode mode) {
+		scheduler.setOutputMode(mode);
+	}
+
+	/**
+	 * Get the way commands are put on the audio link.
+	 * @return
+	 */
+	public OutputMode getOutputMode() {
+		return scheduler.getOutputMode();
 	}
 
 	/**
@@ -352,13 +367,7 @@ public class MotorControl {
 	 * @param speed
 	 */
 	public void setLeftSpeed(int speed) {
-		if(speed < SPEED_MAX_BACKWARD) speed = SPEED_MAX_BACKWARD;
-		if(speed > SPEED_MAX_FORWARD) speed = SPEED_MAX_FORWARD;
-		lock.lock();
-		speedLeft = speed; 
-		updateLeft = true;
-		modified.signalAll();
-		lock.unlock();
+		scheduler.setLeftSpeed(speed);
 	}
 
 	/**
@@ -366,7 +375,7 @@ public class MotorControl {
 	 * @return
 	 */
 	public int getLeftSpeed() {
-		return speedLeft;
+		return scheduler.getLeftSpeed();
 	}
 
 	/**
@@ -375,14 +384,7 @@ public class MotorControl {
 	 * @param speed
 	 */
 	public void setRightSpeed(int speed) {
-		if(speed < SPEED_MAX_BACKWARD) speed = SPEED_MAX_BACKWARD;
-		if(speed > SPEED_MAX_FORWARD) speed = SPEED_MAX_FORWARD;
-		lock.lock();
-		speedRight = speed; 
-		updateRight = true;
-		modified.signalAll();
-		lock.unlock();
-
+		scheduler.setRightSpeed(speed);
 	}
 
 	/**
@@ -390,7 +392,7 @@ public class MotorControl {
 	 * @return
 	 */
 	public int getRightSpeed() {
-		return speedRight;
+		return scheduler.getRightSpeed();
 	}
 
 	/**
@@ -401,10 +403,31 @@ public class MotorControl {
 	 */
 	public void setLeftRightSpeed(int left, int right)
 	{
-		lock.lock();
-		setLeftSpeed(left);
-		setRightSpeed(right);
-		lock.unlock();
+		scheduler.setLeftRightSpeed(left, right);
+	}
+
+	/**
+	 * Sets the speeds of all motors in a single atomic update, sent as one frame.
+	 * Speeds are clipped to a range between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD.
+	 * @param left
+	 * @param right
+	 * @param aux
+	 */
+	public void setSpeeds(int left, int right, int aux) {
+		scheduler.setSpeeds(left, right, aux);
+	}
+
+	/**
+	 * Sets the speeds of the motors selected by the mask in a single atomic update, sent as
+	 * one frame. Speeds of motors not in the mask are ignored.
+	 * Speeds are clipped to a range between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD.
+	 * @param mask a combination of MOTOR_LEFT, MOTOR_RIGHT and MOTOR_AUX
+	 * @param left
+	 * @param right
+	 * @param aux
+	 */
+	public void setSpeeds(int mask, int left, int right, int aux) {
+		scheduler.setSpeeds(mask, left, right, aux);
 	}
 	
 	/**
@@ -413,13 +436,7 @@ public class MotorControl {
 	 * @param speed
 	 */
 	public void setAuxSpeed(int speed) {
-		if(speed < SPEED_MAX_BACKWARD) speed = SPEED_MAX_BACKWARD;
-		if(speed > SPEED_MAX_FORWARD) speed = SPEED_MAX_FORWARD;
-		lock.lock();
-		speedAux = speed; 
-		updateAux = true;
-		modified.signalAll();
-		lock.unlock();
+		scheduler.setAuxSpeed(speed);
 	}
 
 	/**
@@ -427,30 +444,32 @@ public class MotorControl {
 	 * @return
 	 */
 	public int getAuxSpeed() {
-		return speedAux;
+		return scheduler.getAuxSpeed();
 	}
 
 
+	/**
+	 * Stop all motors as fast as the link allows. Audio that has not been played yet is dropped
+	 * and stop frames for all motors are sent right away, without inter-command gaps. The stop
+	 * latency is reported in getLatencyStats.
+	 */
+	public void emergencyStop() {
+		scheduler.emergencyStop();
+	}
+
 	/**
 	 * Pause all motors and temporarily release control over the Romo.
 	 * No commands will be sent to the Romo until resume is called.
 	 */
 	public void pause() {
-		lock.lock();
-		paused = true;
-		modified.signalAll();
-		lock.unlock();
+		scheduler.pause();
 	}
 
 	/**
 	 * Resume control over the Romo. The previous speeds will be commanded again. 
 	 */
 	public void resume() {
-		lock.lock();
-		paused = false;
-		refresh();
-		modified.signalAll();
-		lock.unlock();
+		scheduler.resume();
 	}
 
 	/**
@@ -458,25 +477,53 @@ public class MotorControl {
 	 * Will do nothing if suspended.
 	 */
 	public void refresh() {
-		lock.lock();
-		if (!paused) {
-			updateLeft = true;
-			updateRight = true;
-			updateAux = true;
-			nextRefresh += refreshIntervalNs;
-			if (nextRefresh < System.nanoTime())
-				nextRefresh = System.nanoTime() + refreshIntervalNs;
-			modified.signalAll();
-		}
-		lock.unlock();
+		scheduler.refresh();
 	}
 	
+	/**
+	 * Get a snapshot of the latencies of the commands sent so far, from setting a speed until
+	 * it is put on the audio link, per motor and per cause (update or refresh).
+	 * @return
+	 */
+	public LatencyStats getLatencyStats() {
+		return scheduler.getLatencyStats();
+	}
+
+	/**
+	 * Get a snapshot of the counters of the link: frames sent, speeds coalesced, refreshes,
+	 * stop frames of pauses and of emergency stops, focus retries and the share of time the
+	 * link was busy.
+	 * @return
+	 */
+	public LinkStatistics getLinkStatistics() {
+		return scheduler.getLinkStatistics();
+	}
+
+	/**
+	 * Dump the latest commands sent, with the time they were sent and their cause, to a file.
+	 * Read it back with FlightLog.read. The file is overwritten.
+	 * @param file
+	 * @throws LibRomoException if the file cannot be written
+	 */
+	public void dumpFlightRecorder(File file) throws LibRomoException {
+		scheduler.getFlightRecorder().dump(file);
+	}
+
+	/**
+	 * Set a file to dump the latest commands sent to whenever the Romo gets disconnected while
+	 * being controlled. The file is overwritten by every dump.
+	 * @param file the file, null (default) to not dump on disconnect
+	 */
+	public void setFlightDumpFile(File file) {
+		scheduler.setFlightDumpFile(file);
+	}
+
 	/**
 	 * Check if the Romo is connected
 	 * @return true if connected
 	 */
 	public boolean isConnected(){
-		return connected;
+		return scheduler.isConnected();
 	}
 	
 	/**
@@ -484,7 +531,7 @@ public class MotorControl {
 	 * @return
 	 */
 	public boolean isPaused() {
-		return paused;
+		return scheduler.isPaused();
 	}
 	
 	/**
@@ -492,7 +539,7 @@ public class MotorControl {
 	 * @return
 	 */
 	public boolean isControlling() {
-		return controlling;
+		return scheduler.isControlling();
 	}
 	
 	/**
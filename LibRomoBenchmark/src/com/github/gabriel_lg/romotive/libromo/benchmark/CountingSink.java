@@ -0,0 +1,115 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo.benchmark;
+
+import java.nio.ByteBuffer;
+
+import com.github.gabriel_lg.romotive.libromo.AudioSink;
+
+/**
+ * AudioSink discarding all audio, counting the writes carrying commands (silence starts
+ * with a zero sample, a command frame never does). Never blocks, so the scheduler runs
+ * as fast as it can.
+ * @author Lambertus Gorter
+ *
+ */
+public class CountingSink implements AudioSink {
+	private final int sampleRate;
+	private volatile long commandWrites = 0;
+	private volatile long shorts = 0;
+
+	public CountingSink(int sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @return the number of writes that carried commands
+	 */
+	public long getCommandWrites() {
+		return commandWrites;
+	}
+
+	/**
+	 * @return the total number of shorts written
+	 */
+	public long getShorts() {
+		return shorts;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public void play() {
+	}
+
+	@Override
+	public int write(short[] audioData, int offsetInShorts, int sizeInShorts) {
+		//only the scheduler thread writes
+		shorts += sizeInShorts;
+		if (sizeInShorts > 0 && audioData[offsetInShorts] != 0) commandWrites++;
+		return sizeInShorts;
+	}
+
+	@Override
+	public int write(ByteBuffer audioData, boolean blocking) {
+		//only the scheduler thread writes
+		int size = audioData.remaining();
+		shorts += size / 2;
+		if (size > 0 && audioData.getShort(audioData.position()) != 0) commandWrites++;
+		audioData.position(audioData.limit());
+		return size;
+	}
+
+	@Override
+	public int getPlaybackHeadPosition() {
+		//everything written is played right away
+		return (int) (shorts / 2);
+	}
+
+	@Override
+	public boolean awaitPlayed(long timeoutNanos) {
+		return true;
+	}
+
+	@Override
+	public void stop() {
+	}
+
+	@Override
+	public void pause() {
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void release() {
+	}
+}
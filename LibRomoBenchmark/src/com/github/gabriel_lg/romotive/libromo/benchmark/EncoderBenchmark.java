@@ -0,0 +1,92 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.gabriel_lg.romotive.libromo.WaveformBank;
+
+/**
+ * Benchmarks of the frame encoder: building the waveform bank, looking up a single frame
+ * and rendering a batch of three commands with their gaps.
+ * @author Lambertus Gorter
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+	private static final int GAP_SHORTS = 12 * 16;
+
+	private WaveformBank bank;
+	private final int[] addresses = { 1, 2, 3 };
+	private final int[] speeds = new int[3];
+	private short[] buffer;
+	private int speed = 0;
+
+	@Setup
+	public void setup() {
+		bank = new WaveformBank();
+		buffer = new short[bank.renderSize(3, GAP_SHORTS, true)];
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public WaveformBank buildBank() {
+		return new WaveformBank();
+	}
+
+	@Benchmark
+	public short[] frameLookup() {
+		speed = speed == 127 ? -127 : speed + 1;
+		return bank.getFrame(2, speed);
+	}
+
+	@Benchmark
+	public void renderBatch(Blackhole blackhole) {
+		speed = speed == 127 ? -127 : speed + 1;
+		speeds[0] = speed;
+		speeds[1] = -speed;
+		speeds[2] = speed / 2;
+		blackhole.consume(bank.render(addresses, speeds, 3, GAP_SHORTS, true, buffer));
+		blackhole.consume(buffer);
+	}
+}
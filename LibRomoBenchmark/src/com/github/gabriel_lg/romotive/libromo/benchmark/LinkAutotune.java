@@ -0,0 +1,144 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo.benchmark;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+import com.github.gabriel_lg.romotive.libromo.LibRomoRuntimeException;
+import com.github.gabriel_lg.romotive.libromo.LinkProfile;
+import com.github.gabriel_lg.romotive.libromo.LinkTiming;
+import com.github.gabriel_lg.romotive.libromo.OutputMode;
+import com.github.gabriel_lg.romotive.libromo.WaveformBank;
+
+/**
+ * Finds the inter-command gap and refresh interval to configure MotorControl with. Every
+ * combination of sample rate, gap and refresh interval is run through a LinkSimulation, with
+ * clock jitter and sample drops injected. Symbols shorter than those of the Romo protocol can
+ * be tried with -symbol, the higher sample rates still place their clock edges accurately.
+ * The recommended profile has the smallest gap at which the frames still decode reliably, and
+ * the longest refresh interval (costing the least airtime) that still gets every speed to the
+ * Romo within the latency target, repairing lost frames included.
+ * <p>
+ * The profile is written as a LinkProfile, which an app reads (LinkProfile.read) to create
+ * MotorControl with its timing and apply the rest (MotorControl.setProfile).
+ * <p>
+ * Run with: java -cp target/benchmarks.jar com.github.gabriel_lg.romotive.libromo.benchmark.LinkAutotune
+ * [-seconds 600] [-input 2] [-slip 0.001] [-drops 0.1] [-maxdrop 48] [-decoded 99.5]
+ * [-latency 250] [-symbol 1000] [-edge 50] [-seed 1] [-out profile.properties]
+ * @author Lambertus Gorter
+ *
+ */
+public class LinkAutotune {
+	private static final int[] SAMPLE_RATES = { WaveformBank.SAMPLE_RATE, 44100, 48000 };
+	private static final int[] GAPS_MS = { 0, 1, 2, 3, 4, 6, 8, 10, 12 };
+	private static final int[] REFRESH_MS = { 0, 100, 250, 500, 1000, 2000 };
+
+	public static void main(String[] args) throws IOException {
+		double seconds = 600;
+		double inputRate = 2;
+		double slipRate = 0.001;
+		double dropRate = 0.1;
+		int maxDrop = 48;
+		double decodedTarget = 99.5;
+		double latencyTarget = 250;
+		int symbolMicros = LinkTiming.DEFAULT_SYMBOL_MICROS;
+		int clockHighPercent = LinkTiming.DEFAULT_CLOCK_HIGH_PERCENT;
+		long seed = 1;
+		String out = null;
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 == args.length) throw new IllegalArgumentException("Missing value: " + args[i]);
+			String value = args[i + 1];
+			if (args[i].equals("-seconds")) seconds = Double.parseDouble(value);
+			else if (args[i].equals("-input")) inputRate = Double.parseDouble(value);
+			else if (args[i].equals("-slip")) slipRate = Double.parseDouble(value);
+			else if (args[i].equals("-drops")) dropRate = Double.parseDouble(value);
+			else if (args[i].equals("-maxdrop")) maxDrop = Integer.parseInt(value);
+			else if (args[i].equals("-decoded")) decodedTarget = Double.parseDouble(value);
+			else if (args[i].equals("-latency")) latencyTarget = Double.parseDouble(value);
+			else if (args[i].equals("-symbol")) symbolMicros = Integer.parseInt(value);
+			else if (args[i].equals("-edge")) clockHighPercent = Integer.parseInt(value);
+			else if (args[i].equals("-seed")) seed = Long.parseLong(value);
+			else if (args[i].equals("-out")) out = value;
+			else throw new IllegalArgumentException("Unknown option: " + args[i]);
+		}
+
+		System.out.println("rate  gap refresh  decoded%  frames/s  cmd/s max  p50 ms  p99 ms  lost");
+		LinkSimulation.Result best = null;
+		LinkTiming bestTiming = null;
+		for (int rate : SAMPLE_RATES) {
+			LinkTiming timing;
+			try {
+				timing = new LinkTiming(rate, symbolMicros, clockHighPercent);
+			} catch (LibRomoRuntimeException e) {
+				System.out.println(rate + ": " + e.getMessage());
+				continue;
+			}
+			LinkSimulation simulation = new LinkSimulation(timing, seconds, inputRate, slipRate, dropRate, maxDrop, seed);
+			LinkSimulation.Result chosen = null;
+			for (int gap : GAPS_MS) {
+				LinkSimulation.Result reliable = null;
+				boolean decodes = true;
+				for (int refresh : REFRESH_MS) {
+					LinkSimulation.Result result = simulation.run(gap, refresh);
+					System.out.println(String.format(Locale.US, "%5d %4d %7d %9.3f %9.1f %10.1f %7.1f %7.1f %5d", rate, gap,
+							refresh, result.getDecodedPercentage(), result.getEmittedPerSecond(),
+							timing.getCommandsPerSecond(gap), result.getLatencyMs(50), result.getLatencyMs(99), result.lost));
+					decodes &= result.getDecodedPercentage() >= decodedTarget;
+					//without refresh a lost frame is never repaired, it is only simulated for reference
+					if (refresh != 0 && result.getLatencyMs(100) <= latencyTarget) reliable = result;
+				}
+				if (decodes && reliable != null) {
+					chosen = reliable;
+					break;
+				}
+			}
+			if (chosen != null && (best == null || chosen.getLatencyMs(100) < best.getLatencyMs(100))) {
+				best = chosen;
+				bestTiming = timing;
+			}
+		}
+
+		if (best == null) {
+			System.out.println("No setting meets the targets, loosen -decoded or -latency");
+			return;
+		}
+		Writer writer = out != null ? new FileWriter(out) : null;
+		PrintWriter profile = new PrintWriter(writer != null ? writer : new OutputStreamWriter(System.out));
+		profile.println("# MotorControl profile, " + decodedTarget + "% decoded, latency <= " + latencyTarget
+				+ " ms max, slip " + slipRate + ", " + dropRate + " drops/s of up to " + maxDrop + " samples");
+		profile.print(new LinkProfile(bestTiming, OutputMode.CONTINUOUS, best.gapMs, best.refreshMs));
+		profile.println(String.format(Locale.US, "# %.1f commands/s max, latency p50 %.1f ms, p99 %.1f ms, max %.1f ms, %.3f%% decoded",
+				bestTiming.getCommandsPerSecond(best.gapMs),
+				best.getLatencyMs(50), best.getLatencyMs(99), best.getLatencyMs(100), best.getDecodedPercentage()));
+		profile.flush();
+		if (writer != null) writer.close();
+	}
+}
@@ -0,0 +1,288 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.github.gabriel_lg.romotive.libromo.FrameDecoder;
+import com.github.gabriel_lg.romotive.libromo.LinkTiming;
+import com.github.gabriel_lg.romotive.libromo.WaveformBank;
+
+/**
+ * Simulation of the audio link, in link time rather than wall time, so minutes of driving are
+ * simulated in well under a second.
+ * <p>
+ * The sender follows what the CommandScheduler does in OutputMode.CONTINUOUS: changed speeds
+ * are sent back to back separated by the gap, all motors are sent again when the refresh is due,
+ * and otherwise silence is written a frame at a time. The speeds are set by a simulated
+ * joystick. The audio then passes a channel that injects clock jitter (samples slipping: being
+ * skipped or repeated) and drops (runs of lost samples, like buffer underruns) before being
+ * decoded by the FrameDecoder, standing in for the Romo.
+ * @author Lambertus Gorter
+ *
+ */
+public class LinkSimulation {
+	private final WaveformBank waveforms;
+	private final LinkTiming timing;
+	private final double seconds;
+	private final double inputRate;
+	private final double slipRate;
+	private final double dropRate;
+	private final int maxDropSamples;
+	private final long seed;
+
+	/**
+	 * @param timing
+	 * @param seconds the time to simulate
+	 * @param inputRate the average number of times per second the joystick moves
+	 * @param slipRate the chance of a single sample slipping
+	 * @param dropRate the average number of drops per second
+	 * @param maxDropSamples the longest drop in samples
+	 * @param seed the seed of the randomness, the same seed gives the same input and channel
+	 */
+	public LinkSimulation(LinkTiming timing, double seconds, double inputRate, double slipRate, double dropRate,
+			int maxDropSamples, long seed) {
+		this.timing = timing;
+		waveforms = new WaveformBank(timing);
+		this.seconds = seconds;
+		this.inputRate = inputRate;
+		this.slipRate = slipRate;
+		this.dropRate = dropRate;
+		this.maxDropSamples = maxDropSamples;
+		this.seed = seed;
+	}
+
+	/**
+	 * Simulate the link with the given settings.
+	 * @param gapMs the inter-command gap
+	 * @param refreshMs the refresh interval, 0 for none
+	 * @return
+	 */
+	public Result run(int gapMs, int refreshMs) {
+		int rate = timing.getSampleRate();
+		int frameSamples = timing.getFrameShortSize() / LinkTiming.CHANNELS;
+		int gapSamples = timing.shortsForMillis(gapMs) / LinkTiming.CHANNELS;
+		long refreshSamples = (long) refreshMs * rate / 1000;
+		int totalSamples = (int) (seconds * rate);
+
+		//the joystick: at random moments new left and right speeds
+		Random random = new Random(seed);
+		List<Input> inputs = new ArrayList<Input>();
+		for (double t = next(random, inputRate); t < seconds; t += next(random, inputRate)) {
+			int left = random.nextInt(255) - 127;
+			int right = random.nextInt(255) - 127;
+			inputs.add(new Input((int) (t * rate), 1, left));
+			inputs.add(new Input((int) (t * rate), 2, right));
+		}
+
+		//the sender
+		short[] audio = new short[(totalSamples + 4 * (frameSamples + gapSamples)) * LinkTiming.CHANNELS];
+		Input[] latest = new Input[WaveformBank.ADDRESS_COUNT + 1];
+		int[] speeds = new int[WaveformBank.ADDRESS_COUNT + 1];
+		boolean[] dirty = new boolean[WaveformBank.ADDRESS_COUNT + 1];
+		int nextInput = 0;
+		long nextRefresh = refreshSamples;
+		int t = 0;
+		long emitted = 0;
+		while (t < totalSamples) {
+			while (nextInput < inputs.size() && inputs.get(nextInput).time <= t) {
+				Input input = inputs.get(nextInput++);
+				latest[input.address] = input;
+				speeds[input.address] = input.speed;
+				dirty[input.address] = true;
+			}
+			boolean refresh = refreshSamples != 0 && t >= nextRefresh;
+			if (refresh) {
+				nextRefresh += refreshSamples;
+				if (nextRefresh <= t) nextRefresh = t + refreshSamples;
+			}
+			boolean sent = false;
+			for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+				if (!dirty[address] && !refresh) continue;
+				dirty[address] = false;
+				short[] frame = waveforms.getFrame(address, speeds[address]);
+				System.arraycopy(frame, 0, audio, t * LinkTiming.CHANNELS, frame.length);
+				t += frameSamples + gapSamples;
+				if (latest[address] != null && latest[address].sentAt < 0) latest[address].sentAt = t;
+				emitted++;
+				sent = true;
+			}
+			if (!sent) t += frameSamples; //a frame of silence
+		}
+		//the last frames may run past the simulated time, let them play out
+		int sentSamples = t;
+
+		//the channel
+		short[] received = new short[audio.length * 2];
+		int[] source = new int[audio.length];
+		int length = 0;
+		int drop = 0;
+		for (int i = 0; i < sentSamples; i++) {
+			if (drop > 0) {
+				drop--;
+				continue;
+			}
+			if (dropRate > 0 && random.nextDouble() < dropRate / rate) {
+				drop = 1 + random.nextInt(maxDropSamples);
+				continue;
+			}
+			double slip = random.nextDouble();
+			int copies = slip < slipRate / 2 ? 0 : slip < slipRate ? 2 : 1;
+			for (int c = 0; c < copies; c++) {
+				received[length * 2] = audio[i * 2];
+				received[length * 2 + 1] = audio[i * 2 + 1];
+				source[length++] = i;
+			}
+		}
+
+		//the receiver
+		final List<long[]> frames = new ArrayList<long[]>();
+		FrameDecoder decoder = new FrameDecoder(timing, new FrameDecoder.Listener() {
+			@Override
+			public void onFrame(int address, int speed, long startSample, long gapSamples) {
+				frames.add(new long[] { startSample, address, speed });
+			}
+
+			@Override
+			public void onViolation(int violation, long startSample) {
+			}
+		});
+		decoder.decode(received, 0, length * 2);
+		decoder.flush();
+
+		//latency: from setting a speed until the Romo got it, in source samples
+		long[] latencies = new long[inputs.size()];
+		int measured = 0;
+		long lost = 0;
+		int first = 0;
+		for (int i = 0; i < inputs.size(); i++) {
+			Input input = inputs.get(i);
+			if (input.sentAt < 0) continue; //coalesced with a newer speed before being sent
+			//the speed is sent (and refreshed) until a newer speed of the motor is sent
+			int superseded = sentSamples;
+			for (int j = i + 1; j < inputs.size(); j++) {
+				if (inputs.get(j).address == input.address && inputs.get(j).sentAt >= 0) {
+					superseded = inputs.get(j).sentAt;
+					break;
+				}
+			}
+			//inputs are in time order, so frames ending before this one are of no use to later ones
+			while (first < frames.size() && source[(int) frames.get(first)[0]] + frameSamples < input.time) first++;
+			long got = -1;
+			for (int frame = first; frame < frames.size(); frame++) {
+				long[] f = frames.get(frame);
+				long start = source[(int) f[0]];
+				if (start >= superseded) break;
+				long at = start + frameSamples;
+				if (f[1] == input.address && f[2] == input.speed) {
+					got = at;
+					break;
+				}
+			}
+			if (got < 0) {
+				lost++;
+				latencies[measured++] = Long.MAX_VALUE;
+			} else {
+				latencies[measured++] = got - input.time;
+			}
+		}
+		latencies = Arrays.copyOf(latencies, measured);
+		Arrays.sort(latencies);
+		return new Result(gapMs, refreshMs, emitted, decoder.getFrameCount(), lost, latencies, rate, seconds);
+	}
+
+	private static double next(Random random, double rate) {
+		return -Math.log(1 - random.nextDouble()) / rate;
+	}
+
+	private static class Input {
+		final int time;
+		final int address;
+		final int speed;
+		int sentAt = -1;
+
+		Input(int time, int address, int speed) {
+			this.time = time;
+			this.address = address;
+			this.speed = speed;
+		}
+	}
+
+	/**
+	 * The outcome of simulating a single setting.
+	 */
+	public static class Result {
+		public final int gapMs;
+		public final int refreshMs;
+		public final long emitted;
+		public final long decoded;
+		public final long lost;
+		private final long[] latencies;
+		private final int sampleRate;
+		private final double seconds;
+
+		Result(int gapMs, int refreshMs, long emitted, long decoded, long lost, long[] latencies, int sampleRate,
+				double seconds) {
+			this.gapMs = gapMs;
+			this.refreshMs = refreshMs;
+			this.emitted = emitted;
+			this.decoded = decoded;
+			this.lost = lost;
+			this.latencies = latencies;
+			this.sampleRate = sampleRate;
+			this.seconds = seconds;
+		}
+
+		/**
+		 * @return the percentage of the frames sent that the Romo decoded
+		 */
+		public double getDecodedPercentage() {
+			return emitted == 0 ? 100 : 100.0 * decoded / emitted;
+		}
+
+		/**
+		 * @return the number of frames sent per second
+		 */
+		public double getEmittedPerSecond() {
+			return emitted / seconds;
+		}
+
+		/**
+		 * @param percentile
+		 * @return the latency from setting a speed until the Romo got it in milliseconds,
+		 * Double.POSITIVE_INFINITY if it did not get it before the speed was set again
+		 */
+		public double getLatencyMs(double percentile) {
+			if (latencies.length == 0) return 0;
+			int rank = (int) Math.ceil(latencies.length * percentile / 100) - 1;
+			long latency = latencies[Math.max(0, Math.min(latencies.length - 1, rank))];
+			return latency == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : latency * 1000.0 / sampleRate;
+		}
+	}
+}
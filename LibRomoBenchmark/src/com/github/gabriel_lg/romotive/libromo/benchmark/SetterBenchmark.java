@@ -0,0 +1,102 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.gabriel_lg.romotive.libromo.CommandScheduler;
+import com.github.gabriel_lg.romotive.libromo.OutputMode;
+import com.github.gabriel_lg.romotive.libromo.WaveformBank;
+
+/**
+ * Benchmarks of the setter path, the cost an app (e.g. the UI thread handling a touch
+ * stream) pays for updating the speeds while the scheduler is busy streaming commands.
+ * @author Lambertus Gorter
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetterBenchmark {
+	private CommandScheduler scheduler;
+
+	@State(Scope.Thread)
+	public static class Speed {
+		private int speed = 0;
+
+		int next() {
+			speed = speed == 127 ? -127 : speed + 1;
+			return speed;
+		}
+	}
+
+	@Setup
+	public void setup() throws InterruptedException {
+		scheduler = new CommandScheduler(new CountingSink(WaveformBank.SAMPLE_RATE));
+		scheduler.setOutputMode(OutputMode.CONTINUOUS);
+		scheduler.start();
+		scheduler.setConnected(true);
+		while (!scheduler.isControlling()) Thread.sleep(1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		scheduler.destroy();
+	}
+
+	@Benchmark
+	public void setLeftSpeed(Speed speed) {
+		scheduler.setLeftSpeed(speed.next());
+	}
+
+	@Benchmark
+	public void setLeftRightSpeed(Speed speed) {
+		int s = speed.next();
+		scheduler.setLeftRightSpeed(s, -s);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void setLeftSpeedContended(Speed speed) {
+		scheduler.setLeftSpeed(speed.next());
+	}
+}
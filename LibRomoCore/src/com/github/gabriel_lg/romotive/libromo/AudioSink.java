@@ -0,0 +1,106 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The destination of the audio generated by MotorControl. The audio is 16 bit PCM,
+ * interleaved stereo, at the sample rate of the sink. The methods follow the semantics
+ * of android.media.AudioTrack in streaming mode, so a sink can be backed by an actual
+ * AudioTrack as well as by memory or a file. A sink that is not bound to a clock (like a
+ * file) plays audio the moment it is written.
+ * @author Lambertus Gorter
+ *
+ */
+public interface AudioSink {
+
+	/**
+	 * Get the sample rate of the sink.
+	 * @return the sample rate in Hz
+	 */
+	public int getSampleRate();
+
+	/**
+	 * Start playing the audio written to the sink.
+	 */
+	public void play();
+
+	/**
+	 * Write audio to the sink. Might block until the audio fits the buffer of the sink.
+	 * @param audioData interleaved stereo samples
+	 * @param offsetInShorts
+	 * @param sizeInShorts
+	 * @return the number of shorts written
+	 */
+	public int write(short[] audioData, int offsetInShorts, int sizeInShorts);
+
+	/**
+	 * Write audio from a buffer, from its position up to its limit. The position of the buffer
+	 * is advanced past the audio written. Writing from a direct buffer avoids copying the audio
+	 * from the Java heap.
+	 * @param audioData interleaved stereo samples in native byte order
+	 * @param blocking true to block until all audio is written, false to write only what fits
+	 * the buffer of the sink right now
+	 * @return the number of bytes written
+	 */
+	public int write(ByteBuffer audioData, boolean blocking);
+
+	/**
+	 * Get the position of the playback head: the number of frames (a sample of each channel)
+	 * played since play was called on a stopped or flushed sink.
+	 * @return the position in frames, 0 when stopped or flushed
+	 */
+	public int getPlaybackHeadPosition();
+
+	/**
+	 * Wait until all audio written since play has actually been played, i.e. the playback
+	 * head reached the end of the written audio.
+	 * @param timeoutNanos the maximum time to wait
+	 * @return true if played, false on time out or when interrupted
+	 */
+	public boolean awaitPlayed(long timeoutNanos);
+
+	/**
+	 * Stop playing once the audio written so far has been played.
+	 */
+	public void stop();
+
+	/**
+	 * Pause playing, audio written so far remains buffered.
+	 */
+	public void pause();
+
+	/**
+	 * Drop the buffered audio that has not been played yet.
+	 */
+	public void flush();
+
+	/**
+	 * Release the resources held by the sink. The sink cannot be used afterwards.
+	 */
+	public void release();
+}
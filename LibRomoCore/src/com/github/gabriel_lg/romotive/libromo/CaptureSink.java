@@ -0,0 +1,243 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * AudioSink capturing the audio in memory, for running MotorControl without audio hardware.
+ * <p>
+ * A real time capture behaves like the headphone jack: the captured audio is a timeline at
+ * the sample rate of the sink. Time during which nothing is playing is captured as silence,
+ * and write blocks when more than the buffer size is waiting to be played. Audio that is
+ * flushed before it would have been played is dropped from the capture.<br>
+ * A capture that is not real time simply records everything written, back to back, and
+ * never blocks.
+ * @author Lambertus Gorter
+ *
+ */
+public class CaptureSink implements AudioSink {
+	private static final int CHANNELS = 2;
+
+	private final int sampleRate;
+	private final boolean realTime;
+	private final long bufferFrames;
+	private short[] capture = new short[8192];
+	private int size = 0;
+	private boolean playing = false;
+	private long startNs = 0;
+	//the position in the capture, in frames, play was called at
+	private long playFrom = 0;
+
+	/**
+	 * Create a capture that is not real time.
+	 * @param sampleRate
+	 */
+	public CaptureSink(int sampleRate) {
+		this(sampleRate, false, 0);
+	}
+
+	/**
+	 * Create a capture.
+	 * @param sampleRate
+	 * @param realTime true to capture on a timeline following the system clock
+	 * @param bufferMs the amount of audio that can be buffered before write blocks (real time only)
+	 */
+	public CaptureSink(int sampleRate, boolean realTime, int bufferMs) {
+		this.sampleRate = sampleRate;
+		this.realTime = realTime;
+		this.bufferFrames = (long) bufferMs * sampleRate / 1000;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public synchronized void play() {
+		if (!playing) {
+			//the output was silent up to now
+			if (realTime && startNs == 0) startNs = System.nanoTime();
+			else if (realTime) padTo(now());
+			playFrom = size / CHANNELS;
+		}
+		playing = true;
+	}
+
+	@Override
+	public int write(short[] audioData, int offsetInShorts, int sizeInShorts) {
+		synchronized (this) {
+			System.arraycopy(audioData, offsetInShorts, capture, append(sizeInShorts), sizeInShorts);
+		}
+		pace();
+		return sizeInShorts;
+	}
+
+	@Override
+	public int write(ByteBuffer audioData, boolean blocking) {
+		int shorts;
+		synchronized (this) {
+			shorts = audioData.remaining() / 2;
+			if (!blocking && realTime) {
+				long free = playing ? bufferFrames - (size / CHANNELS - now()) : bufferFrames;
+				shorts = (int) Math.max(0, Math.min(shorts, free * CHANNELS));
+			}
+			//copied straight into the capture, a view of the buffer would be garbage per write
+			int at = append(shorts);
+			int position = audioData.position();
+			for (int i = 0; i < shorts; i++) capture[at + i] = audioData.getShort(position + i * 2);
+			audioData.position(position + shorts * 2);
+		}
+		if (blocking) pace();
+		return shorts * 2;
+	}
+
+	@Override
+	public synchronized int getPlaybackHeadPosition() {
+		if (!playing) return 0;
+		long head = size / CHANNELS;
+		if (realTime) head = Math.min(head, now());
+		return (int) (head - playFrom);
+	}
+
+	@Override
+	public synchronized boolean awaitPlayed(long timeoutNanos) {
+		if (!realTime) return true;
+		long deadline = System.nanoTime() + timeoutNanos;
+		long waitNs;
+		//a flush drops what has not been played, ending the wait
+		while ((waitNs = (size / CHANNELS - now()) * 1000000000L / sampleRate) > 0) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) return false;
+			waitNs = Math.min(waitNs, left);
+			try {
+				wait(waitNs / 1000000, (int) (waitNs % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void stop() {
+		playing = false;
+	}
+
+	@Override
+	public synchronized void pause() {
+		playing = false;
+	}
+
+	@Override
+	public synchronized void flush() {
+		if (realTime) {
+			//drop whatever has not been played yet
+			size = (int) Math.min(size, now() * CHANNELS);
+			notifyAll();
+		}
+	}
+
+	@Override
+	public void release() {
+	}
+
+	/**
+	 * Get the number of shorts captured so far.
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Get a copy of the audio captured so far.
+	 * @return interleaved stereo samples
+	 */
+	public synchronized short[] toArray() {
+		short[] copy = new short[size];
+		System.arraycopy(capture, 0, copy, 0, size);
+		return copy;
+	}
+
+	/**
+	 * Discard the audio captured so far.
+	 */
+	public synchronized void clear() {
+		size = 0;
+		if (realTime) startNs = playing ? System.nanoTime() : 0;
+	}
+
+	//the current position of the timeline in frames
+	private long now() {
+		return (System.nanoTime() - startNs) * sampleRate / 1000000000L;
+	}
+
+	//capture silence up to the given frame
+	private void padTo(long frame) {
+		long shorts = frame * CHANNELS;
+		if (shorts <= size) return;
+		if (shorts > Integer.MAX_VALUE) throw new LibRomoRuntimeException("Capture too long");
+		ensureCapacity((int) shorts);
+		Arrays.fill(capture, size, (int) shorts, (short) 0);
+		size = (int) shorts;
+	}
+
+	//make room for the given number of shorts at the end of the capture, returning where
+	private int append(int shorts) {
+		if (realTime && playing) padTo(now());
+		ensureCapacity(size + shorts);
+		int at = size;
+		size += shorts;
+		return at;
+	}
+
+	//block while more than the buffer size is waiting to be played
+	private void pace() {
+		long waitNs;
+		synchronized (this) {
+			waitNs = realTime && playing ? (size / CHANNELS - now() - bufferFrames) * 1000000000L / sampleRate : 0;
+		}
+		if (waitNs > 0) {
+			try {
+				Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void ensureCapacity(int shorts) {
+		if (shorts > capture.length) {
+			short[] grown = new short[Math.max(shorts, capture.length * 2)];
+			System.arraycopy(capture, 0, grown, 0, size);
+			capture = grown;
+		}
+	}
+}
@@ -0,0 +1,1408 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The CommandScheduler decides which commands are sent to the Romo and when, and puts them on
+ * an AudioSink. It is an "active" object: once started it runs a thread of execution of its own.
+ * <p>
+ * The scheduler does not depend on any platform. Whatever the platform needs to do when
+ * taking or releasing control of the audio output (audio focus, volume) is delegated to
+ * a Host. This allows the scheduler to run, and be benchmarked, on a plain JVM.
+ * @author Lambertus Gorter
+ *
+ */
+public class CommandScheduler {
+	public static final int SPEED_MAX_FORWARD = 127;
+	public static final int SPEED_MAX_BACKWARD = -127;
+	public static final int SPEED_STOP = 0;
+	public static final int MOTOR_LEFT = 1;
+	public static final int MOTOR_RIGHT = 2;
+	public static final int MOTOR_AUX = 4;
+	public static final int MOTOR_ALL = MOTOR_LEFT | MOTOR_RIGHT | MOTOR_AUX;
+
+	/**
+	 * Host granting focus right away and doing nothing on taking or releasing control.
+	 */
+	public static final Host NO_HOST = new Host() {
+		@Override
+		public boolean requestFocus() {
+			return true;
+		}
+
+		@Override
+		public void startControl() {
+		}
+
+		@Override
+		public void stopControl() {
+		}
+	};
+
+	private static final int WAIT_NONE = 0;
+	private static final int WAIT_CONTROL = 1;
+	private static final int WAIT_SPEEDS = 2;
+	private static final long FOREVER = Long.MAX_VALUE;
+	//how much longer than its duration audio may take to play before giving up waiting for it
+	private static final long PLAY_TIMEOUT_NS = 100 * 1000000L;
+	private static final long DRAIN_TIMEOUT_NS = 1000 * 1000000L;
+	private static final int NONE_EMITTED = Integer.MIN_VALUE;
+	private static final int[] STOP_ADDRESSES = { 1, 2, 3 };
+	private static final int[] STOP_SPEEDS = { SPEED_STOP, SPEED_STOP, SPEED_STOP };
+	private static final int FLIGHT_RECORDS = 8192;
+
+	private final AudioSink sink;
+	private final Host host;
+	private final LinkTiming timing;
+	private final ProtocolDescriptor protocol;
+	//replaced as a whole when the calibration changes, its direct frames only used by the worker
+	private volatile WaveformBank waveforms;
+	private volatile SpeedCalibration calibration = new SpeedCalibration();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	//state guarded by the lock
+	private long refreshIntervalNs = 0;
+	private long interCmdGapMs = 0;
+	private OutputMode outputMode = OutputMode.COMMAND;
+	private long nextRefresh = System.nanoTime();
+	private long nextFocusRequest = System.nanoTime();
+	private boolean connected = false;
+	private boolean focus = false;
+	private boolean paused = false;
+	private boolean controlling = false;
+	private boolean destroyed = false;
+	//only started by the worker with the lock held
+	private volatile boolean streaming = false;
+	//shorts written since streaming started, only touched by the worker
+	private long streamedShorts = 0;
+	//the time the audio written to the stream ends playing by the system clock, only touched by the worker
+	private long streamEndNs = 0;
+
+	//the speeds and dirty bits of all motors, packed into a single word (see SpeedState)
+	private final AtomicInteger speedState = new AtomicInteger(SpeedState.INITIAL);
+	//what the worker is (about to be) parked for: WAIT_NONE, WAIT_CONTROL or WAIT_SPEEDS
+	private volatile int waiting = WAIT_NONE;
+	//the time of the earliest emergency stop not handled yet, 0 if none
+	private final AtomicLong emergencyRequest = new AtomicLong(0);
+	//whether the worker is playing the stop frames, only touched with the lock held
+	private boolean emergencyStopping = false;
+
+	//last speed emitted per address, only touched by the worker
+	private final int[] lastEmitted = { NONE_EMITTED, NONE_EMITTED, NONE_EMITTED, NONE_EMITTED };
+	private volatile boolean skipUnchanged = false;
+
+	//per address, the time a speed was first set since its last command, 0 if not set
+	private final AtomicLongArray setTimes = new AtomicLongArray(WaveformBank.ADDRESS_COUNT + 1);
+	//ramping of the speeds of motors with limited acceleration, guarded by the lock
+	private final MotionProfile motion = new MotionProfile();
+	private long lastMotionStep = 0;
+	private long nextMotionStep = 0;
+	private long motionStepShorts = 0;
+	//worker only, the set time of a target until the first ramped command is sent
+	private final long[] motionSetTimes = new long[WaveformBank.ADDRESS_COUNT + 1];
+	//the sequence being played and the stream position it started at, guarded by the lock
+	private SequencePlayback sequence = null;
+	private long sequenceBase = -1;
+	//recorded by the worker only
+	private final LatencyStats latency = new LatencyStats();
+	private final LinkStatistics statistics = new LinkStatistics();
+	private volatile long startTime = 0;
+	private final FlightRecorder recorder;
+	private volatile File flightDumpFile = null;
+	//fed with the commands taking effect, if set
+	private volatile Odometry odometry = null;
+
+	//batch buffers, only touched by the worker
+	private final int[] batchAddress = new int[WaveformBank.ADDRESS_COUNT];
+	private final int[] batchSpeed = new int[WaveformBank.ADDRESS_COUNT];
+	private final int[] batchCause = new int[WaveformBank.ADDRESS_COUNT];
+	private final long[] batchSetTime = new long[WaveformBank.ADDRESS_COUNT];
+	private ByteBuffer batch;
+	private final ByteBuffer silence;
+	//silence letting the Romo drop a frame that was cut off, followed by stop frames for all motors
+	private final ByteBuffer emergencyStopFrames;
+	//audio that did not fit the sink yet when streaming, written before anything else
+	private ByteBuffer pending = null;
+
+	//The thread doing the actual work...
+	private final Thread worker = new Thread() {
+		public void run() {
+			lock.lock();
+			while (!destroyed) {
+				try {
+					if(controlling) {
+						//state: controlling 
+						if(!paused && connected && focus) {
+							if (outputMode == OutputMode.CONTINUOUS && !streaming) {
+								sink.play();
+								streamedShorts = 0;
+								streamEndNs = System.nanoTime();
+								streaming = true;
+							} else if (outputMode != OutputMode.CONTINUOUS && streaming) {
+								stopStreaming(true);
+							}
+							if (sequence != null && (!streaming || sequence.isCancelled())) {
+								finishSequence(true);
+							}
+							if (emergencyRequest.get() != 0) {
+								motion.stop();
+								finishSequence(true);
+								emergencyStopping = true;
+								lock.unlock();
+								playEmergencyStop();
+								lock.lock();
+								emergencyStopping = false;
+							} else if (pending != null) {
+								lock.unlock();
+								writePending();
+								lock.lock();
+								//wait for the sink to play half of what it holds, still handling changes of
+								//state, and write on before it runs dry in the middle of a frame
+								if (pending != null) {
+									long room = Math.min(pending.remaining() / 2, streamAhead() / 2);
+									await(WAIT_CONTROL, timing.nanosForShorts((int) Math.max(room, LinkTiming.CHANNELS)));
+								}
+							} else if (isSequenceDue()) {
+								//the slots up to the next command of the sequence are kept free of anything else
+								long ahead = streamAhead();
+								if (ahead > timing.getFrameShortSize()) {
+									await(WAIT_CONTROL, timing.nanosForShorts(ahead - timing.getFrameShortSize()));
+								} else {
+									playSequence();
+								}
+							} else if (SpeedState.isDirty(speedState.get())) {
+								//take all dirty motors from a single snapshot, so speeds set
+								//together are never sent partially updated
+								int count = collectCommands(takeDirty(SpeedState.DIRTY_ALL | SpeedState.FORCE_ALL));
+								if (count > 0) {
+									OutputMode mode = outputMode;
+									lock.unlock();
+									playBatch(mode, count);
+									lock.lock();
+								}
+							} else if (refreshIntervalNs != 0 && System.nanoTime() - nextRefresh >= 0) {
+								refresh();
+							} else if (streaming && streamAhead() > timing.getFrameShortSize()) {
+								//the next slot is taken already, wait for it to start playing
+								await(WAIT_SPEEDS, timing.nanosForShorts((int) streamAhead() - timing.getFrameShortSize()));
+							} else if (motion.isMoving() && isMotionStepDue()) {
+								//a slot is free: step the ramps and send the speeds that changed
+								int count = collectMotion();
+								if (count > 0) {
+									OutputMode mode = outputMode;
+									lock.unlock();
+									playBatch(mode, count);
+									lock.lock();
+								}
+							} else if (streaming) {
+								//keep the stream going with silence, paced by the audio clock (see streamAhead)
+								lock.unlock();
+								silence.clear();
+								streamWrite(silence);
+								lock.lock();
+							} else if (motion.isMoving()) {
+								await(WAIT_SPEEDS, nextMotionStep - System.nanoTime());
+							} else if (refreshIntervalNs == 0) {
+								await(WAIT_SPEEDS, FOREVER);
+							} else {
+								await(WAIT_SPEEDS, nextRefresh - System.nanoTime());
+							}
+						//state changed...
+						}else{
+							motion.stop();
+							finishSequence(true);
+							if(connected) {
+								lock.unlock();
+								playStopCommands(FlightRecorder.CAUSE_PAUSE_STOP);
+								recordEmergencyStop();
+								stopStreaming(true);
+								//give the audio subsystem 100ms to allow for playing command
+								sleep(100);
+								lock.lock();
+							} else {
+								stopStreaming(false);
+								//there is nothing to stop
+								emergencyRequest.set(0);
+								recorder.record(System.nanoTime(), 0, SPEED_STOP, FlightRecorder.CAUSE_DISCONNECT_STOP);
+								lock.unlock();
+								dumpOnDisconnect();
+								lock.lock();
+							}
+							host.stopControl();
+							focus = false;
+							controlling = false;
+						}
+					//state not controlling	
+					}else{
+						if(!paused && connected && focus) {
+							host.startControl();
+							refresh();
+							controlling = true;
+						}else if(!paused && connected){
+							long now = System.nanoTime();
+							if (now - nextFocusRequest < 0) {
+								await(WAIT_CONTROL, nextFocusRequest - now);
+							} else if(host.requestFocus()) {
+								focus = true;
+							}else{
+								statistics.focusDenied();
+								emergencyRequest.set(0);
+								//request focus again after 1 second
+								nextFocusRequest = now + 1000*1000000L;
+							}
+						}else{
+							emergencyRequest.set(0);
+							await(WAIT_CONTROL, FOREVER);
+						}
+					}
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					if (!lock.isHeldByCurrentThread())
+						lock.lock();
+					emergencyStopping = false;
+				}
+			} //while(!destroyed)
+			lock.unlock();
+			if(controlling && connected) {
+				playStopCommands(FlightRecorder.CAUSE_RELEASE_STOP);
+				stopStreaming(true);
+				//give the audio subsystem 100ms to allow for playing command
+				try {
+					sleep(100);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				host.stopControl();
+			}
+			sink.release();
+		}
+	};
+
+	/**
+	 * Create a scheduler on a plain JVM, without a host. Focus is always granted.
+	 * @param sink
+	 * @throws LibRomoRuntimeException if the sample rate of the sink is not supported.
+	 */
+	public CommandScheduler(AudioSink sink) {
+		this(sink, NO_HOST);
+	}
+
+	/**
+	 * Create a scheduler sending the symbols of the Romo protocol at the sample rate of the sink.
+	 * The scheduler does nothing until it is started.
+	 * @param sink the sink to put the commands on, released when the scheduler is destroyed
+	 * @param host
+	 * @throws LibRomoRuntimeException if the sample rate of the sink is not supported.
+	 */
+	public CommandScheduler(AudioSink sink, Host host) {
+		this(sink, host, new LinkTiming(sink.getSampleRate()));
+	}
+
+	/**
+	 * Create a scheduler sending the Romo protocol with the given timing. The scheduler does
+	 * nothing until it is started.
+	 * @param sink the sink to put the commands on, released when the scheduler is destroyed
+	 * @param host
+	 * @param timing with the sample rate of the sink
+	 * @throws LibRomoRuntimeException if the sample rate of the sink does not match the timing.
+	 */
+	public CommandScheduler(AudioSink sink, Host host, LinkTiming timing) {
+		this(sink, host, timing, ProtocolDescriptor.romo());
+	}
+
+	/**
+	 * Create a scheduler sending the given protocol, to drive another robot than the Romo.
+	 * The scheduler does nothing until it is started.
+	 * @param sink the sink to put the commands on, released when the scheduler is destroyed
+	 * @param host
+	 * @param timing with the sample rate of the sink and the symbol count of the protocol
+	 * @param protocol copied, changing it afterwards has no effect
+	 * @throws LibRomoRuntimeException if the sample rate of the sink does not match the timing,
+	 * or the protocol is incomplete or does not match the timing.
+	 */
+	public CommandScheduler(AudioSink sink, Host host, LinkTiming timing, ProtocolDescriptor protocol) {
+		if (sink.getSampleRate() != timing.getSampleRate())
+			throw new LibRomoRuntimeException("Unsupported sample rate: " + sink.getSampleRate());
+		this.sink = sink;
+		this.host = host;
+		this.timing = timing;
+		recorder = new FlightRecorder(FLIGHT_RECORDS, timing);
+		//kept to compile the bank again when the calibration changes
+		this.protocol = protocol.copy();
+		waveforms = new WaveformBank(timing, this.protocol, calibration);
+		batch = allocate(WaveformBank.ADDRESS_COUNT * timing.getFrameShortSize());
+		silence = allocate(timing.getFrameShortSize());
+		//two symbols of silence
+		int resyncShorts = timing.getSymbolStart(2) * LinkTiming.CHANNELS;
+		emergencyStopFrames = allocate(resyncShorts + STOP_ADDRESSES.length * timing.getFrameShortSize());
+		for (int i = 0; i < resyncShorts; i++) emergencyStopFrames.putShort((short) 0);
+		for (int address : STOP_ADDRESSES) emergencyStopFrames.put(waveforms.getFrameBuffer(address, SPEED_STOP));
+	}
+
+	/**
+	 * Start the thread of the scheduler.
+	 */
+	public void start() {
+		startTime = System.nanoTime();
+		worker.start();
+	}
+
+	/**
+	 * Stop the thread of the scheduler. When controlling, the motors are stopped and control is
+	 * released first.
+	 */
+	public void destroy() {
+		lock.lock();
+		destroyed = true;
+		lock.unlock();
+		wakeup();
+	}
+
+	/**
+	 * Get the timing model of the link.
+	 * @return
+	 */
+	public LinkTiming getTiming() {
+		return timing;
+	}
+
+	/**
+	 * Set the motor at the given address at the given speed.
+	 * The frame is taken from the precomputed waveform bank, so nothing is encoded or
+	 * allocated here.
+	 * @param address
+	 * @param speed
+	 * @return the time the write returned
+	 */
+	private long playCommand(int address, int speed) {
+		ByteBuffer frame = waveforms.getFrameBuffer(address, speed);
+		sink.play();
+		sink.write(frame, true);
+		long written = System.nanoTime();
+		finishPlaying(timing.getFrameShortSize());
+		takingEffect(address, speed, System.nanoTime());
+		statistics.emitted(address, timing.getFrameDurationNanos());
+		sleepGap(interCmdGapMs * 1000000L);
+		return written;
+	}
+
+	/**
+	 * Wait for the audio written to actually leave the buffer of the sink and stop playing.
+	 * Stopping earlier would truncate the last frame, sleeping for the nominal duration instead
+	 * would space the frames too far when the audio output runs ahead.
+	 * @param shorts the number of shorts written since play
+	 */
+	private void finishPlaying(int shorts) {
+		sink.awaitPlayed(timing.nanosForShorts(shorts) + PLAY_TIMEOUT_NS);
+		sink.stop();
+	}
+
+	/**
+	 * Render the given commands, separated by the inter-command gap, into a single buffer
+	 * and play it with a single write.
+	 * When streaming continuously, the gap following the last command is written as silence
+	 * too, so the spacing of the commands is timed by the audio clock instead of by sleeping.
+	 * @param addresses
+	 * @param speeds
+	 * @param count the number of commands to play
+	 * @param gapMs the inter-command gap
+	 * @return the time the write returned
+	 */
+	private long playCommands(int[] addresses, int[] speeds, int count, long gapMs) {
+		int gapShorts = timing.shortsForMillis(gapMs);
+		boolean trailingGap = streaming;
+		int length = waveforms.renderSize(count, gapShorts, trailingGap);
+		//the batch buffer may still be pending
+		finishPending();
+		if (batch.capacity() < length * 2) batch = allocate(length);
+		waveforms.render(addresses, speeds, count, gapShorts, trailingGap, batch);
+		for (int i = 0; i < count; i++) statistics.emitted(addresses[i], timing.getFrameDurationNanos());
+		if (streaming) {
+			streamWrite(batch);
+			long written = System.nanoTime();
+			takingEffect(addresses, speeds, count, gapShorts, length, streamPlayedAt(written));
+			return written;
+		}
+		sink.play();
+		sink.write(batch, true);
+		long written = System.nanoTime();
+		finishPlaying(length);
+		takingEffect(addresses, speeds, count, gapShorts, length, System.nanoTime());
+		sleepGap(gapMs * 1000000L);
+		return written;
+	}
+
+	/**
+	 * Feed the commands of a write to the odometry, if any, with the moment each frame ends
+	 * playing: when the Romo takes its speed.
+	 * @param addresses
+	 * @param speeds
+	 * @param count
+	 * @param gapShorts the gap following each command
+	 * @param length the number of shorts written
+	 * @param played the time the end of the write plays
+	 */
+	private void takingEffect(int[] addresses, int[] speeds, int count, int gapShorts, int length, long played) {
+		if (odometry == null) return;
+		for (int i = 0; i < count; i++) {
+			int end = (i + 1) * timing.getFrameShortSize() + i * gapShorts;
+			takingEffect(addresses[i], speeds[i], played - timing.nanosForShorts(length - end));
+		}
+	}
+
+	private void takingEffect(int address, int speed, long nanos) {
+		Odometry odometry = this.odometry;
+		if (odometry != null) odometry.emitted(address, speed, nanos);
+	}
+
+	/**
+	 * Get the time the audio written to the stream so far ends playing, the pending audio
+	 * included. Only to be called by the worker while streaming.
+	 * @param now
+	 * @return
+	 */
+	private long streamPlayedAt(long now) {
+		long queued = streamAhead() + (pending != null ? pending.remaining() / 2 : 0);
+		return now + timing.nanosForShorts(queued);
+	}
+
+	/**
+	 * Play the commands collected in the batch buffers and record their latencies.
+	 * @param mode
+	 * @param count the number of commands collected
+	 */
+	private void playBatch(OutputMode mode, int count) {
+		if (mode == OutputMode.COMMAND) {
+			//the commands left are dropped on an emergency stop
+			for (int i = 0; i < count && emergencyRequest.get() == 0; i++) {
+				long start = System.nanoTime();
+				long written = playCommand(batchAddress[i], batchSpeed[i]);
+				record(i, start, written);
+			}
+		} else {
+			long start = System.nanoTime();
+			long written = playCommands(batchAddress, batchSpeed, count, interCmdGapMs);
+			for (int i = 0; i < count; i++) record(i, start, written);
+		}
+	}
+
+	/**
+	 * Record a command of the batch buffers in the flight recorder, and its latency.
+	 * @param i
+	 * @param start the time the write started
+	 * @param written the time the write returned
+	 */
+	private void record(int i, long start, long written) {
+		int cause = batchCause[i];
+		recorder.record(written, batchAddress[i], batchSpeed[i], cause);
+		long set = batchSetTime[i];
+		if (set == 0) return;
+		int latencyCause = cause == FlightRecorder.CAUSE_REFRESH ? LatencyStats.CAUSE_REFRESH : LatencyStats.CAUSE_UPDATE;
+		latency.record(batchAddress[i], latencyCause, start - set, written - set);
+	}
+
+	/**
+	 * Collect the commands for the dirty motors of the given speed state into the batch
+	 * buffers. When skipping unchanged commands, a motor that is dirty but not forced (by a
+	 * refresh) is skipped if its speed equals the speed emitted last.
+	 * The speed of a motor with limited acceleration becomes the target of its ramp instead,
+	 * which is sent by collectMotion. A refresh sends its current, ramped, speed.
+	 * Only to be called by the worker, with the lock held.
+	 * @param state
+	 * @return the number of commands collected
+	 */
+	private int collectCommands(int state) {
+		boolean skip = skipUnchanged;
+		int count = 0;
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			if (!SpeedState.isDirty(state, address)) continue;
+			int speed = SpeedState.getSpeed(state, address);
+			boolean forced = SpeedState.isForced(state, address);
+			long setTime = setTimes.getAndSet(address, 0);
+			if (motion.isLimited(address)) {
+				if (!motion.isMoving()) startMotion();
+				motion.setTarget(address, speed);
+				if (!forced) {
+					if (motionSetTimes[address] == 0) motionSetTimes[address] = setTime;
+					continue;
+				}
+				speed = motion.getSpeed(address);
+			} else {
+				motion.jump(address, speed);
+			}
+			if (skip && !forced && lastEmitted[address] == speed) {
+				statistics.skipped();
+				continue;
+			}
+			if (forced) statistics.refreshed();
+			lastEmitted[address] = speed;
+			batchAddress[count] = address;
+			batchSpeed[count] = speed;
+			batchCause[count] = forced ? FlightRecorder.CAUSE_REFRESH : FlightRecorder.CAUSE_SET;
+			batchSetTime[count++] = setTime;
+		}
+		return count;
+	}
+
+	/**
+	 * Start stepping the ramps. The first step covers a whole frame, so the first ramped
+	 * command is sent in the first free slot. Only to be called by the worker, with the lock held.
+	 */
+	private void startMotion() {
+		long now = System.nanoTime();
+		lastMotionStep = now - timing.getFrameDurationNanos();
+		nextMotionStep = now;
+		motionStepShorts = -1;
+	}
+
+	/**
+	 * Check if the ramps are to be stepped: once for every slot of the stream when streaming,
+	 * whether the previous slot got a command or silence, or else once for every frame time.
+	 * @return
+	 */
+	private boolean isMotionStepDue() {
+		if (streaming) return streamedShorts != motionStepShorts;
+		return System.nanoTime() - nextMotionStep >= 0;
+	}
+
+	/**
+	 * Step the ramps to now and collect the commands for the motors whose rounded speed
+	 * changed into the batch buffers. Nothing is sent for steps too small to change a speed.
+	 * Only to be called by the worker, with the lock held.
+	 * @return the number of commands collected
+	 */
+	private int collectMotion() {
+		long now = System.nanoTime();
+		motion.step(now - lastMotionStep);
+		lastMotionStep = now;
+		nextMotionStep = now + timing.getFrameDurationNanos();
+		motionStepShorts = streamedShorts;
+		int count = 0;
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			if (!motion.isLimited(address)) continue;
+			int speed = motion.getSpeed(address);
+			if (lastEmitted[address] == speed) continue;
+			lastEmitted[address] = speed;
+			batchAddress[count] = address;
+			batchSpeed[count] = speed;
+			batchCause[count] = FlightRecorder.CAUSE_RAMP;
+			batchSetTime[count++] = motionSetTimes[address];
+			motionSetTimes[address] = 0;
+		}
+		return count;
+	}
+
+	/**
+	 * Check if the next command of the sequence is too close for anything else to be written
+	 * before it: a batch of commands for all motors, with their gaps, would not fit anymore.
+	 * The sequence starts at the stream position of the first check.
+	 * Only to be called by the worker, with the lock held and nothing pending.
+	 * @return
+	 */
+	private boolean isSequenceDue() {
+		if (sequence == null) return false;
+		if (sequenceBase < 0) sequenceBase = streamedShorts;
+		int gapShorts = timing.shortsForMillis(interCmdGapMs);
+		return shortsUntilSequence() < waveforms.renderSize(WaveformBank.ADDRESS_COUNT, gapShorts, true);
+	}
+
+	private long shortsUntilSequence() {
+		SequencePlan plan = sequence.getPlan();
+		return sequenceBase + plan.getStartShort(sequence.getEmittedCount()) - streamedShorts;
+	}
+
+	/**
+	 * Write silence up to the next command of the sequence, a frame at most, or the command
+	 * itself if it is due. The speed of the command becomes the speed of its motor, unless
+	 * a speed set for the motor is still to be sent: live input is merged with the sequence
+	 * the same way speeds set from different threads are, the latest wins.
+	 * Only to be called by the worker, with the lock held and nothing pending.
+	 */
+	private void playSequence() {
+		long until = shortsUntilSequence();
+		if (until > 0) {
+			silence.clear();
+			silence.limit((int) Math.min(until, timing.getFrameShortSize()) * 2);
+			lock.unlock();
+			streamWrite(silence);
+			lock.lock();
+			return;
+		}
+		SequencePlan plan = sequence.getPlan();
+		int index = sequence.getEmittedCount();
+		int address = plan.getAddress(index);
+		int speed = plan.getSpeed(index);
+		lastEmitted[address] = speed;
+		motion.jump(address, speed);
+		adoptSpeed(address, speed);
+		long played = System.nanoTime() + timing.nanosForShorts(streamAhead());
+		sequence.emitted((streamedShorts - sequenceBase) / LinkTiming.CHANNELS, played);
+		if (index + 1 == plan.size()) finishSequence(false);
+		batchAddress[0] = address;
+		batchSpeed[0] = speed;
+		long gapMs = interCmdGapMs;
+		lock.unlock();
+		long written = playCommands(batchAddress, batchSpeed, 1, gapMs);
+		recorder.record(written, address, speed, FlightRecorder.CAUSE_SEQUENCE);
+		lock.lock();
+	}
+
+	/**
+	 * Stop playing the sequence, if any. Only to be called by the worker, with the lock held.
+	 * @param cancel true if the sequence is cancelled, false if all its commands were sent
+	 */
+	private void finishSequence(boolean cancel) {
+		if (sequence == null) return;
+		sequence.finish(cancel);
+		sequence = null;
+		sequenceBase = -1;
+	}
+
+	/**
+	 * Make the speed the speed of the motor at the address, without sending it again, unless
+	 * another speed set for the motor is still to be sent.
+	 * @param address
+	 * @param speed
+	 */
+	private void adoptSpeed(int address, int speed) {
+		int state;
+		do {
+			state = speedState.get();
+			if (SpeedState.isDirty(state, address)) return;
+		} while (!speedState.compareAndSet(state, SpeedState.setSpeed(state, address, speed)));
+	}
+
+	/**
+	 * Stop all motors as soon as possible: drop the audio that has not been played yet and
+	 * send stop frames for all motors back to back, without gaps. The stop frames are preceded
+	 * by two symbols of silence, so the Romo drops a frame that was cut off instead of reading
+	 * it on into the stop frames. Only to be called by the worker, without the lock held.
+	 */
+	private void playEmergencyStop() {
+		takeDirty(SpeedState.DIRTY_ALL | SpeedState.FORCE_ALL);
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			setTimes.set(address, 0);
+			lastEmitted[address] = SPEED_STOP;
+			statistics.emitted(address, timing.getFrameDurationNanos());
+		}
+		statistics.emergencyStopped(STOP_ADDRESSES.length);
+		sink.pause();
+		sink.flush();
+		pending = null;
+		streamedShorts = 0;
+		streamEndNs = System.nanoTime();
+		sink.play();
+		ByteBuffer frames = emergencyStopFrames;
+		frames.clear();
+		if (streaming) {
+			streamWrite(frames);
+			recordEmergencyStop();
+		} else {
+			sink.write(frames, true);
+			recordEmergencyStop();
+		}
+		long written = System.nanoTime();
+		for (int i = 0; i < STOP_ADDRESSES.length; i++) {
+			recorder.record(written, STOP_ADDRESSES[i], SPEED_STOP, FlightRecorder.CAUSE_EMERGENCY_STOP);
+		}
+		int length = frames.capacity() / 2;
+		if (streaming) {
+			takingEffect(STOP_ADDRESSES, STOP_SPEEDS, STOP_ADDRESSES.length, 0, length, streamPlayedAt(written));
+		} else {
+			finishPlaying(length);
+			takingEffect(STOP_ADDRESSES, STOP_SPEEDS, STOP_ADDRESSES.length, 0, length, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Record the latency of an emergency stop, if requested, once its stop frames are written.
+	 */
+	private void recordEmergencyStop() {
+		long requested = emergencyRequest.getAndSet(0);
+		if (requested != 0) latency.recordEmergencyStop(System.nanoTime() - requested);
+	}
+
+	/**
+	 * Stop all motors, in a single write unless the output mode is COMMAND.
+	 * @param cause the FlightRecorder cause to record the stop commands with
+	 */
+	private void playStopCommands(int cause) {
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) lastEmitted[address] = SPEED_STOP;
+		statistics.stopped(STOP_ADDRESSES.length);
+		if (outputMode != OutputMode.COMMAND) {
+			long written = playCommands(STOP_ADDRESSES, STOP_SPEEDS, STOP_ADDRESSES.length, interCmdGapMs);
+			for (int address : STOP_ADDRESSES) recorder.record(written, address, SPEED_STOP, cause);
+		} else {
+			for (int address : STOP_ADDRESSES) recorder.record(playCommand(address, SPEED_STOP), address, SPEED_STOP, cause);
+		}
+	}
+
+	/**
+	 * Dump the flight recorder to the dump file, if set. Only to be called by the worker,
+	 * without the lock held.
+	 */
+	private void dumpOnDisconnect() {
+		File file = flightDumpFile;
+		if (file == null) return;
+		try {
+			recorder.dump(file);
+		} catch (LibRomoException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write audio to the stream without blocking, so the worker does not get stuck inside the
+	 * sink while state changes. What does not fit the sink right now becomes pending. Audio still
+	 * pending from before is written first, blocking, so frames never get mixed up.
+	 * @param audio a buffer that is not touched again until it is written
+	 */
+	private void streamWrite(ByteBuffer audio) {
+		finishPending();
+		pending = audio;
+		writePending();
+	}
+
+	/**
+	 * Write the pending audio, blocking.
+	 */
+	private void finishPending() {
+		if (pending == null) return;
+		streamed(sink.write(pending, true) / 2);
+		pending = null;
+	}
+
+	private void writePending() {
+		int written = sink.write(pending, false);
+		if (written > 0) streamed(written / 2);
+		if (!pending.hasRemaining()) pending = null;
+	}
+
+	private void streamed(int shorts) {
+		streamedShorts += shorts;
+		long now = System.nanoTime();
+		//time the stream ran dry is not made up for
+		if (streamEndNs - now < 0) streamEndNs = now;
+		streamEndNs += timing.nanosForShorts(shorts);
+	}
+
+	private static ByteBuffer allocate(int shorts) {
+		return ByteBuffer.allocateDirect(shorts * 2).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Get the amount of audio written to the stream that has not been played yet.
+	 * <p>
+	 * While streaming, the sink holds the frame that is playing and at most a single next one,
+	 * instead of being filled up with silence ahead of time. A speed set while a frame plays is
+	 * thus rendered from the latest snapshot and written into the first free slot, rather than
+	 * queueing behind all buffered silence.<br>
+	 * The playback head tells what has been played. Sinks that are not bound to a clock take
+	 * everything right away though, their head never falls behind what was written. When the
+	 * head has caught up, the audio still to play is therefore taken from the time elapsed
+	 * since it was written, so the stream is paced by the system clock instead of being written
+	 * as fast as the sink takes it.
+	 * @return the number of shorts ahead of the playback head
+	 */
+	private long streamAhead() {
+		long ahead = streamedShorts - (long) sink.getPlaybackHeadPosition() * LinkTiming.CHANNELS;
+		if (ahead > 0) return ahead;
+		long left = streamEndNs - System.nanoTime();
+		return left > 0 ? left * timing.getSampleRate() / 1000000000L * LinkTiming.CHANNELS : 0;
+	}
+
+	/**
+	 * Leave continuous streaming, if streaming. Only to be called by the worker.
+	 * @param drain true to let the written commands play out, false to drop them
+	 */
+	private void stopStreaming(boolean drain) {
+		if (!streaming) return;
+		if (drain) finishPending();
+		pending = null;
+		if (drain) {
+			//the scheduler does not know how much the sink buffers, give it a second at most
+			sink.awaitPlayed(DRAIN_TIMEOUT_NS);
+			sink.stop();
+		} else {
+			sink.pause();
+			sink.flush();
+		}
+		streaming = false;
+	}
+
+	/**
+	 * Wait for something to change. Only to be called by the worker, with the lock held.
+	 * The lock is released while waiting. Setters do not take the lock, so when waiting for
+	 * speeds the dirty bits are checked again after announcing the wait; a setter seeing the
+	 * announcement will unpark the worker.
+	 * @param what WAIT_CONTROL to wait for a change of the state guarded by the lock only,
+	 * WAIT_SPEEDS to wait for a change of the speeds as well
+	 * @param timeoutNs the maximum time to wait, FOREVER to wait without timeout
+	 */
+	private void await(int what, long timeoutNs) {
+		waiting = what;
+		lock.unlock();
+		try {
+			if (what != WAIT_SPEEDS || !SpeedState.isDirty(speedState.get())) {
+				if (timeoutNs == FOREVER) LockSupport.park(this);
+				else if (timeoutNs > 0) LockSupport.parkNanos(this, timeoutNs);
+			}
+		} finally {
+			waiting = WAIT_NONE;
+			lock.lock();
+		}
+	}
+
+	/**
+	 * Wake up the worker, if it is waiting for a change of the state guarded by the lock.
+	 */
+	private void wakeup() {
+		if (waiting != WAIT_NONE) LockSupport.unpark(worker);
+	}
+
+	/**
+	 * Wake up the worker, if it is waiting for the speeds to change.
+	 */
+	private void wakeupForSpeeds() {
+		if (waiting == WAIT_SPEEDS) LockSupport.unpark(worker);
+	}
+
+	/**
+	 * Atomically clear the given dirty bits.
+	 * @param dirtyBits
+	 * @return the speed state before clearing
+	 */
+	private int takeDirty(int dirtyBits) {
+		int state;
+		do {
+			state = speedState.get();
+		} while ((state & dirtyBits) != 0 && !speedState.compareAndSet(state, state & ~dirtyBits));
+		return state;
+	}
+
+	/**
+	 * Atomically publish new speeds for the motors in the mask, marking them dirty, and wake up
+	 * the worker. Wait-free for all practical purposes: a retry only happens when another
+	 * thread published at the very same moment.
+	 * @param mask SpeedState.DIRTY_* bits of the motors to set
+	 * @param left
+	 * @param right
+	 * @param aux
+	 */
+	private void publish(int mask, int left, int right, int aux) {
+		if ((mask & SpeedState.DIRTY_ALL) == 0) return;
+		stampSetTimes(mask);
+		int state;
+		int update;
+		do {
+			state = speedState.get();
+			update = state | mask;
+			if ((mask & SpeedState.DIRTY_LEFT) != 0) update = SpeedState.setSpeed(update, 1, clip(left));
+			if ((mask & SpeedState.DIRTY_RIGHT) != 0) update = SpeedState.setSpeed(update, 2, clip(right));
+			if ((mask & SpeedState.DIRTY_AUX) != 0) update = SpeedState.setSpeed(update, 3, clip(aux));
+		} while (!speedState.compareAndSet(state, update));
+		//dirty but not forced motors held a speed set before, that is overwritten now
+		int overwritten = state & mask & ~(state >>> 3) & SpeedState.DIRTY_ALL;
+		if (overwritten != 0) statistics.coalesced(Integer.bitCount(overwritten));
+		wakeupForSpeeds();
+	}
+
+	/**
+	 * Stamp the current time on the motors in the mask that have not been set since their last
+	 * command. Stamped before the speeds are published, so the worker never takes a speed
+	 * without its time.
+	 * @param mask SpeedState.DIRTY_* bits
+	 */
+	private void stampSetTimes(int mask) {
+		long now = 0;
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			if ((mask & SpeedState.dirtyBit(address)) != 0 && setTimes.get(address) == 0) {
+				if (now == 0) now = System.nanoTime();
+				setTimes.compareAndSet(address, 0, now);
+			}
+		}
+	}
+
+	private static int clip(int speed) {
+		if(speed < SPEED_MAX_BACKWARD) speed = SPEED_MAX_BACKWARD;
+		if(speed > SPEED_MAX_FORWARD) speed = SPEED_MAX_FORWARD;
+		return speed;
+	}
+
+	/**
+	 * Sleep for the inter-command gap, cut short by an emergency stop.
+	 * @param nanos
+	 */
+	private void sleepGap(long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		long left;
+		while (emergencyRequest.get() == 0 && (left = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, left);
+		}
+	}
+
+	/**
+	 * Tell the scheduler the Romo got (dis)connected. On disconnect, audio that has not been
+	 * played yet is dropped.
+	 * @param connected
+	 */
+	public void setConnected(boolean connected) {
+		lock.lock();
+		//a continuous stream is silenced by the worker, pausing it here could block the worker in write
+		if (!connected && !streaming) {
+			sink.pause();
+			sink.flush();
+		}
+		this.connected = connected;
+		if (connected) refresh();
+		lock.unlock();
+		wakeup();
+	}
+
+	/**
+	 * Tell the scheduler whether it has the focus of the audio output.
+	 * @param focus
+	 */
+	public void setFocus(boolean focus) {
+		lock.lock();
+		this.focus = focus;
+		lock.unlock();
+		wakeup();
+	}
+
+	/**
+	 * Set the refresh interval in which the commanded motor speeds will be repeated.
+	 * Set it to 0 (default) to disable repeating motor commands.
+	 * @param milliseconds
+	 */
+	public void setRefreshInterval(long milliseconds) {
+		lock.lock();
+		refreshIntervalNs = milliseconds * 1000000;
+		long tmp = System.nanoTime() + refreshIntervalNs;
+		if (nextRefresh > tmp) nextRefresh = tmp;
+		lock.unlock();
+		wakeup();
+	}
+	
+	/**
+	 * Set the gap (silence) time between commands. Default is 0.
+	 * In OutputMode.CONTINUOUS the gap is written as silence, so it is sample accurate.
+	 * @param milliseconds
+	 */
+	public void setInterCommandGap(long milliseconds) {
+		interCmdGapMs = milliseconds;
+		recorder.setInterCommandGap(milliseconds);
+	}
+
+	/**
+	 * Skip sending a command when the speed of the motor equals the speed sent last, so
+	 * airtime is only spent on commands that change the motion. Refreshes (see
+	 * setRefreshInterval) are always sent and act as keep-alive. Default is false.
+	 * @param skip
+	 */
+	public void setSkipUnchanged(boolean skip) {
+		skipUnchanged = skip;
+	}
+
+	/**
+	 * Check if commands that do not change the speed of a motor are skipped.
+	 * @return
+	 */
+	public boolean isSkipUnchanged() {
+		return skipUnchanged;
+	}
+
+	/**
+	 * Play a compiled sequence of commands. The sequence starts in the first free slot of the
+	 * stream and its commands are written at the sample positions of the plan, so they are
+	 * timed by the audio clock instead of by sleeping. Speeds set while the sequence plays are
+	 * sent in the slots between its commands, without delaying them.
+	 * <p>
+	 * Sequences are only played in OutputMode.CONTINUOUS. An emergency stop, pause, disconnect,
+	 * leaving OutputMode.CONTINUOUS or playing another sequence cancels the sequence.
+	 * @param plan compiled for the timing of this scheduler (see getTiming)
+	 * @return the playback, reporting when each command was put on the link
+	 * @throws LibRomoRuntimeException if the plan was compiled for another timing
+	 */
+	public SequencePlayback play(SequencePlan plan) {
+		if (!plan.getTiming().equals(timing))
+			throw new LibRomoRuntimeException("Plan compiled for another timing");
+		SequencePlayback playback = new SequencePlayback(plan);
+		lock.lock();
+		finishSequence(true);
+		if (plan.size() > 0) sequence = playback;
+		else playback.finish(false);
+		lock.unlock();
+		wakeup();
+		return playback;
+	}
+
+	/**
+	 * Limit the acceleration of the motors in the mask. A speed set for such a motor becomes
+	 * a target, towards which the scheduler ramps the motor itself: in every free slot of the
+	 * link it steps the ramp and sends the speed if it changed. The application does not need
+	 * timers of its own to ramp the speed, and no airtime is spent on repeating commands.
+	 * An emergency stop, pause or disconnect cancels the ramps; on resume the motors ramp up
+	 * from standstill again.
+	 * @param mask a combination of MOTOR_LEFT, MOTOR_RIGHT and MOTOR_AUX
+	 * @param acceleration the maximum change of speed per second, 0 (default) to send speeds
+	 * straight away
+	 * @param jerk the maximum change of acceleration per second squared, 0 for no limit
+	 */
+	public void setMotionLimits(int mask, int acceleration, int jerk) {
+		lock.lock();
+		int ramped = 0;
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			if ((SpeedState.dirtyBits(mask) & SpeedState.dirtyBit(address)) == 0) continue;
+			if (motion.isMoving(address)) ramped |= SpeedState.dirtyBit(address);
+			motion.setLimits(address, acceleration, jerk);
+		}
+		lock.unlock();
+		//a ramp cut short has not sent its target yet
+		if (acceleration <= 0 && ramped != 0) {
+			int state;
+			do {
+				state = speedState.get();
+			} while (!speedState.compareAndSet(state, state | ramped));
+			wakeupForSpeeds();
+		}
+		wakeup();
+	}
+
+	/**
+	 * Calibrate the speed response of the motors. The calibration is folded into the frames
+	 * sent, which are encoded anew here, and the current speeds are sent again calibrated.
+	 * The calibration is copied, changing it afterwards has no effect until it is set again.
+	 * @param calibration
+	 */
+	public void setCalibration(SpeedCalibration calibration) {
+		calibration = calibration.copy();
+		WaveformBank bank = new WaveformBank(timing, protocol, calibration);
+		lock.lock();
+		this.calibration = calibration;
+		waveforms = bank;
+		lock.unlock();
+		refresh();
+	}
+
+	/**
+	 * Set the odometry to feed with the commands sent, or null for none. Each command for the
+	 * left or right motor is fed with the moment its frame ends playing.
+	 * @param odometry
+	 */
+	public void setOdometry(Odometry odometry) {
+		this.odometry = odometry;
+	}
+
+	/**
+	 * @return the odometry fed with the commands sent, null if none
+	 */
+	public Odometry getOdometry() {
+		return odometry;
+	}
+
+	/**
+	 * @return a copy of the calibration of the speed response of the motors
+	 */
+	public SpeedCalibration getCalibration() {
+		return calibration.copy();
+	}
+
+	/**
+	 * Set the way commands are put on the audio link. Default is OutputMode.COMMAND.
+	 * @param mode
+	 */
+	public void setOutputMode(OutputMode mode) {
+		lock.lock();
+		outputMode = mode;
+		lock.unlock();
+		wakeup();
+	}
+
+	/**
+	 * Get the way commands are put on the audio link.
+	 * @return
+	 */
+	public OutputMode getOutputMode() {
+		return outputMode;
+	}
+
+	/**
+	 * Sets the left motor to the given speed.
+	 * Speed is clipped to a range between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD.
+	 * Does not block, so it is safe to call from the UI thread at any rate.
+	 * @param speed
+	 */
+	public void setLeftSpeed(int speed) {
+		publish(SpeedState.DIRTY_LEFT, speed, 0, 0);
+	}
+
+	/**
+	 * get the left motor speed.
+	 * @return
+	 */
+	public int getLeftSpeed() {
+		return SpeedState.getSpeed(speedState.get(), 1);
+	}
+
+	/**
+	 * Sets the right motor to the given speed.
+	 * Speed is clipped to a range between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD.
+	 * Does not block, so it is safe to call from the UI thread at any rate.
+	 * @param speed
+	 */
+	public void setRightSpeed(int speed) {
+		publish(SpeedState.DIRTY_RIGHT, 0, speed, 0);
+	}
+
+	/**
+	 * get the right motor speed.
+	 * @return
+	 */
+	public int getRightSpeed() {
+		return SpeedState.getSpeed(speedState.get(), 2);
+	}
+
+	/**
+	 * Sets both left and right speed. Calling this method makes sure both left and right
+	 * speed are set atomically, preventing quirky movement.
+	 * @param left
+	 * @param right
+	 */
+	public void setLeftRightSpeed(int left, int right)
+	{
+		publish(SpeedState.DIRTY_LEFT | SpeedState.DIRTY_RIGHT, left, right, 0);
+	}
+
+	/**
+	 * Sets the speeds of all motors in a single atomic update. The scheduler sees the speeds
+	 * as one frame and is woken up once.
+	 * Speeds are clipped to a range between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD.
+	 * @param left
+	 * @param right
+	 * @param aux
+	 */
+	public void setSpeeds(int left, int right, int aux) {
+		publish(SpeedState.DIRTY_ALL, left, right, aux);
+	}
+
+	/**
+	 * Sets the speeds of the motors selected by the mask in a single atomic update. Speeds of
+	 * motors not in the mask are ignored. The scheduler sees the speeds as one frame and is
+	 * woken up once.
+	 * Speeds are clipped to a range between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD.
+	 * @param mask a combination of MOTOR_LEFT, MOTOR_RIGHT and MOTOR_AUX
+	 * @param left
+	 * @param right
+	 * @param aux
+	 */
+	public void setSpeeds(int mask, int left, int right, int aux) {
+		publish(SpeedState.dirtyBits(mask), left, right, aux);
+	}
+	
+	/**
+	 * Sets the aux motor to the given speed.
+	 * Speed is clipped to a range between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD.
+	 * Does not block, so it is safe to call from the UI thread at any rate.
+	 * @param speed
+	 */
+	public void setAuxSpeed(int speed) {
+		publish(SpeedState.DIRTY_AUX, 0, 0, speed);
+	}
+
+	/**
+	 * get the aux motor speed.
+	 * @return
+	 */
+	public int getAuxSpeed() {
+		return SpeedState.getSpeed(speedState.get(), 3);
+	}
+
+	/**
+	 * Stop all motors as fast as the link allows. Audio that has not been played yet is dropped,
+	 * a command that is playing is cut off, and stop frames for all motors are sent back to back
+	 * right away, without inter-command gaps. The time from calling this method until the stop
+	 * frames are written is recorded in the LatencyStats.
+	 * Does not block, so it is safe to call from the UI thread.
+	 */
+	public void emergencyStop() {
+		emergencyRequest.compareAndSet(0, System.nanoTime());
+		publish(SpeedState.DIRTY_ALL, SPEED_STOP, SPEED_STOP, SPEED_STOP);
+		//dropping the audio here cuts short a command the worker is blocked writing. A continuous
+		//stream is flushed by the worker, it does not block in write. The lock keeps the worker from
+		//starting a stream in between; when the worker holds it, the worker does the flush itself.
+		//Once the worker plays the stop frames, they are not to be cut off
+		if (lock.tryLock()) {
+			try {
+				if (!streaming && !emergencyStopping) {
+					sink.pause();
+					sink.flush();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		LockSupport.unpark(worker);
+	}
+
+	/**
+	 * Pause all motors and temporarily release control over the Romo.
+	 * No commands will be sent to the Romo until resume is called.
+	 */
+	public void pause() {
+		lock.lock();
+		paused = true;
+		lock.unlock();
+		wakeup();
+	}
+
+	/**
+	 * Resume control over the Romo. The previous speeds will be commanded again. 
+	 */
+	public void resume() {
+		lock.lock();
+		paused = false;
+		refresh();
+		lock.unlock();
+		wakeup();
+	}
+
+	/**
+	 * Force resending the current command. The refresh timer will be reset also.
+	 * Will do nothing if suspended.
+	 */
+	public void refresh() {
+		lock.lock();
+		if (!paused) {
+			stampSetTimes(SpeedState.DIRTY_ALL);
+			int state;
+			do {
+				state = speedState.get();
+			} while (!speedState.compareAndSet(state, state | SpeedState.DIRTY_ALL | SpeedState.FORCE_ALL));
+			nextRefresh += refreshIntervalNs;
+			if (nextRefresh < System.nanoTime())
+				nextRefresh = System.nanoTime() + refreshIntervalNs;
+		}
+		lock.unlock();
+		wakeup();
+	}
+	
+	/**
+	 * Get a snapshot of the latencies of the commands sent so far.
+	 * @return
+	 */
+	public LatencyStats getLatencyStats() {
+		return latency.copy();
+	}
+
+	/**
+	 * Get the flight recorder, which keeps the latest commands put on the link, with the time
+	 * they were written and their cause. It can be dumped at any time.
+	 * @return
+	 */
+	public FlightRecorder getFlightRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Set a file to dump the flight recorder to whenever the Romo gets disconnected while being
+	 * controlled. The file is overwritten by every dump.
+	 * @param file the file, null (default) to not dump on disconnect
+	 */
+	public void setFlightDumpFile(File file) {
+		flightDumpFile = file;
+	}
+
+	/**
+	 * Get a snapshot of the counters of the link.
+	 * @return
+	 */
+	public LinkStatistics getLinkStatistics() {
+		long start = startTime;
+		return statistics.copy(start == 0 ? 0 : System.nanoTime() - start);
+	}
+
+	/**
+	 * Check if the Romo is connected
+	 * @return true if connected
+	 */
+	public boolean isConnected(){
+		return connected;
+	}
+	
+	/**
+	 * Check if the scheduler is paused.
+	 * @return
+	 */
+	public boolean isPaused() {
+		return paused;
+	}
+	
+	/**
+	 * Check if the scheduler is in control of the audio output and sending commands.
+	 * @return
+	 */
+	public boolean isControlling() {
+		return controlling;
+	}
+
+	/**
+	 * The platform the scheduler runs on. The host provides the (exclusive) use of the audio
+	 * output. All methods are called from the thread of the scheduler.
+	 * @author Lambertus Gorter
+	 *
+	 */
+	public interface Host {
+
+		/**
+		 * Request the focus of the audio output. When not granted, the request is repeated
+		 * every second. A granted focus can be withdrawn again through
+		 * CommandScheduler.setFocus.
+		 * @return true if the focus is granted
+		 */
+		public boolean requestFocus();
+
+		/**
+		 * Called when the scheduler takes control of the Romo, e.g. to set the output volume.
+		 */
+		public void startControl();
+
+		/**
+		 * Called when the scheduler releases control of the Romo. The focus must be abandoned
+		 * and anything changed by startControl must be restored.
+		 */
+		public void stopControl();
+	}
+}
@@ -0,0 +1,119 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A list of timed commands, to be compiled into a SequencePlan and played by the
+ * CommandScheduler against the audio clock. Events are added in any order; events at the
+ * same time keep the order they were added in.
+ * @author Lambertus Gorter
+ *
+ */
+public final class CommandSequence {
+	private int[] addresses = new int[16];
+	private int[] speeds = new int[16];
+	private long[] times = new long[16];
+	private int size = 0;
+
+	/**
+	 * Add a command to the sequence.
+	 * @param address the motor address (1, 2 or 3)
+	 * @param speed clipped to a range between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD
+	 * @param microseconds the time from the start of the sequence the command is to start at
+	 * @throws LibRomoRuntimeException if the address or time is invalid
+	 */
+	public void add(int address, int speed, long microseconds) {
+		if (address < 1 || address > WaveformBank.ADDRESS_COUNT)
+			throw new LibRomoRuntimeException("Invalid address: " + address);
+		if (microseconds < 0)
+			throw new LibRomoRuntimeException("Invalid time: " + microseconds);
+		if (size == addresses.length) {
+			addresses = grow(addresses);
+			speeds = grow(speeds);
+			long[] tmp = new long[size * 2];
+			System.arraycopy(times, 0, tmp, 0, size);
+			times = tmp;
+		}
+		addresses[size] = address;
+		speeds[size] = Math.max(CommandScheduler.SPEED_MAX_BACKWARD, Math.min(speed, CommandScheduler.SPEED_MAX_FORWARD));
+		times[size++] = microseconds;
+	}
+
+	/**
+	 * @return the number of commands in the sequence
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Compile the sequence into a plan of sample positions. Each command is placed at the
+	 * sample its time falls on, unless the previous command (and the inter-command gap after
+	 * it) is still playing by then; it is delayed to the first free sample instead, since
+	 * frames cannot overlap on the link.
+	 * @param timing the timing model of the link the plan is played on
+	 * @param interCommandGapMs the silence kept after each command
+	 * @return
+	 */
+	public SequencePlan compile(LinkTiming timing, long interCommandGapMs) {
+		//sort the indices by time, the sort is stable so commands at the same time keep their order
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) order[i] = i;
+		final long[] times = this.times;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				long ta = times[a];
+				long tb = times[b];
+				return ta < tb ? -1 : (ta > tb ? 1 : 0);
+			}
+		});
+		int[] planAddresses = new int[size];
+		int[] planSpeeds = new int[size];
+		long[] requested = new long[size];
+		long[] starts = new long[size];
+		int gapShorts = timing.shortsForMillis(interCommandGapMs);
+		long free = 0;
+		for (int n = 0; n < size; n++) {
+			int i = order[n];
+			planAddresses[n] = addresses[i];
+			planSpeeds[n] = speeds[i];
+			requested[n] = times[i] * timing.getSampleRate() / 1000000 * LinkTiming.CHANNELS;
+			starts[n] = Math.max(requested[n], free);
+			free = starts[n] + timing.getFrameShortSize() + gapShorts;
+		}
+		return new SequencePlan(timing, planAddresses, planSpeeds, requested, starts);
+	}
+
+	private static int[] grow(int[] array) {
+		int[] tmp = new int[array.length * 2];
+		System.arraycopy(array, 0, tmp, 0, array.length);
+		return tmp;
+	}
+}
@@ -0,0 +1,163 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+/**
+ * Drives the Romo as a differential drive: from the linear velocity of its center and its
+ * angular velocity, or the curvature of its path, it computes the speeds of the wheels and
+ * sets both in a single atomic update of the scheduler.
+ * <p>
+ * A wheel speed beyond what the motor can do is saturated by scaling both wheels down by the
+ * same factor, so the ratio of the wheel speeds, and with it the radius of the turn, is kept.
+ * All math is done in integer fixed point, without allocating, so driving can be done from
+ * every touch or sensor event.
+ * <p>
+ * The drive is calibrated by the speed each wheel reaches at SPEED_MAX_FORWARD. How a motor
+ * responds to the speeds in between is calibrated with a SpeedCalibration.
+ * @author Lambertus Gorter
+ *
+ */
+public final class DifferentialDrive {
+	//bounds keeping the fixed point math within a long
+	private static final int MAX_VELOCITY = 1000000;
+	private static final int MAX_WHEEL_BASE = 10000;
+
+	private final CommandScheduler scheduler;
+	private final int wheelBaseMm;
+	private final int leftMaxMmPerS;
+	private final int rightMaxMmPerS;
+
+	/**
+	 * Create a drive with wheels reaching the same speed.
+	 * @param scheduler the scheduler to set the speeds of
+	 * @param wheelBaseMm the distance between the wheels (tracks) in millimeters
+	 * @param maxMmPerS the speed of a wheel at SPEED_MAX_FORWARD in millimeters per second
+	 * @throws LibRomoRuntimeException if a value is out of range
+	 */
+	public DifferentialDrive(CommandScheduler scheduler, int wheelBaseMm, int maxMmPerS) {
+		this(scheduler, wheelBaseMm, maxMmPerS, maxMmPerS);
+	}
+
+	/**
+	 * Create a drive.
+	 * @param scheduler the scheduler to set the speeds of
+	 * @param wheelBaseMm the distance between the wheels (tracks) in millimeters
+	 * @param leftMaxMmPerS the speed of the left wheel at SPEED_MAX_FORWARD in millimeters per second
+	 * @param rightMaxMmPerS the speed of the right wheel at SPEED_MAX_FORWARD in millimeters per second
+	 * @throws LibRomoRuntimeException if a value is out of range
+	 */
+	public DifferentialDrive(CommandScheduler scheduler, int wheelBaseMm, int leftMaxMmPerS, int rightMaxMmPerS) {
+		if (wheelBaseMm <= 0 || wheelBaseMm > MAX_WHEEL_BASE)
+			throw new LibRomoRuntimeException("Invalid wheel base: " + wheelBaseMm);
+		if (leftMaxMmPerS <= 0 || leftMaxMmPerS > MAX_VELOCITY || rightMaxMmPerS <= 0 || rightMaxMmPerS > MAX_VELOCITY)
+			throw new LibRomoRuntimeException("Invalid wheel speeds: " + leftMaxMmPerS + ", " + rightMaxMmPerS);
+		this.scheduler = scheduler;
+		this.wheelBaseMm = wheelBaseMm;
+		this.leftMaxMmPerS = leftMaxMmPerS;
+		this.rightMaxMmPerS = rightMaxMmPerS;
+	}
+
+	/**
+	 * Drive at the given velocities.
+	 * @param linearMmPerS the velocity of the center, positive is forward
+	 * @param angularMradPerS the angular velocity in milliradians per second, positive is
+	 * counterclockwise (turning left)
+	 */
+	public void drive(int linearMmPerS, int angularMradPerS) {
+		long linear = clip(linearMmPerS);
+		//half the difference between the wheels
+		long half = clip(angularMradPerS) * wheelBaseMm / 2000;
+		long left = linear - half;
+		long right = linear + half;
+		//scale both wheels by the smallest factor num / den bringing them within their maximum
+		long num = 1;
+		long den = 1;
+		if (Math.abs(left) * num > leftMaxMmPerS * den) {
+			num = leftMaxMmPerS;
+			den = Math.abs(left);
+		}
+		if (Math.abs(right) * num > rightMaxMmPerS * den) {
+			num = rightMaxMmPerS;
+			den = Math.abs(right);
+		}
+		int leftSpeed = (int) divide(left * num * CommandScheduler.SPEED_MAX_FORWARD, den * leftMaxMmPerS);
+		int rightSpeed = (int) divide(right * num * CommandScheduler.SPEED_MAX_FORWARD, den * rightMaxMmPerS);
+		scheduler.setLeftRightSpeed(leftSpeed, rightSpeed);
+	}
+
+	/**
+	 * Drive along a circle. Unlike drive, the turn stays the same when the velocity changes, but
+	 * the Romo cannot turn on the spot this way.
+	 * @param linearMmPerS the velocity of the center, positive is forward
+	 * @param curvature one over the radius of the circle, in thousandths per meter, positive
+	 * is turning left, 0 is straight ahead
+	 */
+	public void driveCurvature(int linearMmPerS, int curvature) {
+		long angular = divide((long) clip(linearMmPerS) * clip(curvature), 1000);
+		drive(linearMmPerS, (int) angular);
+	}
+
+	/**
+	 * Stop both wheels.
+	 */
+	public void stop() {
+		scheduler.setLeftRightSpeed(CommandScheduler.SPEED_STOP, CommandScheduler.SPEED_STOP);
+	}
+
+	/**
+	 * @return the fastest the Romo drives straight ahead, in millimeters per second
+	 */
+	public int getMaxLinearSpeed() {
+		return Math.min(leftMaxMmPerS, rightMaxMmPerS);
+	}
+
+	/**
+	 * @return the fastest the Romo turns on the spot, in milliradians per second
+	 */
+	public int getMaxAngularSpeed() {
+		return (int) ((leftMaxMmPerS + rightMaxMmPerS) * 1000L / wheelBaseMm);
+	}
+
+	/**
+	 * @return the distance between the wheels in millimeters
+	 */
+	public int getWheelBase() {
+		return wheelBaseMm;
+	}
+
+	private static int clip(int value) {
+		return Math.max(-MAX_VELOCITY, Math.min(value, MAX_VELOCITY));
+	}
+
+	/**
+	 * @param numerator
+	 * @param denominator positive
+	 * @return the quotient rounded half away from zero
+	 */
+	private static long divide(long numerator, long denominator) {
+		return (numerator + (numerator < 0 ? -denominator : denominator) / 2) / denominator;
+	}
+}
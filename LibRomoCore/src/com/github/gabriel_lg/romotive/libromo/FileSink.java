@@ -0,0 +1,336 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * AudioSink writing the audio to a file, either as raw little endian PCM or as a WAV file.
+ * <p>
+ * A real time file sink behaves like the headphone jack: while playing, the file is a timeline
+ * at the sample rate of the sink, following the system clock. Time in which nothing was written
+ * is stored as silence, write blocks when more than the buffer size is waiting to be played and
+ * a flush truncates what would not have been played yet. Time during which the sink is paused
+ * is left out, so in output modes that pause the sink between commands the gaps are left out
+ * as well; only OutputMode.CONTINUOUS stores them.<br>
+ * A file sink that is not real time simply stores everything written, back to back, and never
+ * blocks. The file only reflects the timing of the commands when they are streamed
+ * (OutputMode.CONTINUOUS), as the scheduler paces a stream to a sink without a clock by the
+ * system clock.
+ * @author Lambertus Gorter
+ *
+ */
+public class FileSink implements AudioSink {
+	private static final int CHANNELS = 2;
+	private static final int FRAME_BYTES = CHANNELS * 2;
+	private static final int WAV_HEADER_SIZE = 44;
+
+	private final int sampleRate;
+	private final boolean wav;
+	private final boolean realTime;
+	private final long bufferFrames;
+	private final RandomAccessFile file;
+	private final byte[] bytes = new byte[4096];
+	private long dataSize = 0;
+	private boolean released = false;
+	private boolean playing = false;
+	//the position of the timeline, in frames, at startNs
+	private long timeFrom = 0;
+	private long startNs = 0;
+	//the position in the file, in frames, play was called at
+	private long playFrom = 0;
+
+	/**
+	 * Create a sink writing to the given file, that is not real time. An existing file is
+	 * overwritten.
+	 * @param file
+	 * @param sampleRate
+	 * @param wav true to write a WAV file, false to write raw PCM
+	 * @throws LibRomoException if the file cannot be opened
+	 */
+	public FileSink(File file, int sampleRate, boolean wav) throws LibRomoException {
+		this(file, sampleRate, wav, false, 0);
+	}
+
+	/**
+	 * Create a sink writing to the given file. An existing file is overwritten.
+	 * @param file
+	 * @param sampleRate
+	 * @param wav true to write a WAV file, false to write raw PCM
+	 * @param realTime true to write a timeline following the system clock
+	 * @param bufferMs the amount of audio that can be buffered before write blocks (real time only)
+	 * @throws LibRomoException if the file cannot be opened
+	 */
+	public FileSink(File file, int sampleRate, boolean wav, boolean realTime, int bufferMs) throws LibRomoException {
+		this.sampleRate = sampleRate;
+		this.wav = wav;
+		this.realTime = realTime;
+		this.bufferFrames = (long) bufferMs * sampleRate / 1000;
+		try {
+			this.file = new RandomAccessFile(file, "rw");
+			this.file.setLength(0);
+			if (wav) writeHeader();
+		} catch (IOException e) {
+			throw new LibRomoException("Cannot open " + file, e);
+		}
+	}
+
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public synchronized void play() {
+		if (!playing && realTime) {
+			//the timeline continues where it was paused
+			startNs = System.nanoTime();
+			playFrom = timeFrom;
+		} else if (!playing) {
+			playFrom = frames();
+		}
+		playing = true;
+	}
+
+	@Override
+	public int write(short[] audioData, int offsetInShorts, int sizeInShorts) {
+		synchronized (this) {
+			try {
+				padToNow();
+				int end = offsetInShorts + sizeInShorts;
+				for (int i = offsetInShorts; i < end;) {
+					int n = 0;
+					for (; n < bytes.length && i < end; i++) {
+						bytes[n++] = (byte) audioData[i];
+						bytes[n++] = (byte) (audioData[i] >> 8);
+					}
+					file.write(bytes, 0, n);
+					dataSize += n;
+				}
+			} catch (IOException e) {
+				throw new LibRomoRuntimeException("Cannot write audio", e);
+			}
+		}
+		pace();
+		return sizeInShorts;
+	}
+
+	@Override
+	public int write(ByteBuffer audioData, boolean blocking) {
+		int written;
+		synchronized (this) {
+			written = audioData.remaining() & ~1;
+			if (!blocking && realTime) {
+				long free = playing ? bufferFrames - (frames() - now()) : bufferFrames;
+				written = (int) Math.max(0, Math.min(written, free * FRAME_BYTES));
+			}
+			int limit = audioData.limit();
+			audioData.limit(audioData.position() + written);
+			try {
+				padToNow();
+				if (audioData.order() == ByteOrder.LITTLE_ENDIAN) {
+					//already in file order
+					while (audioData.hasRemaining()) {
+						int n = Math.min(bytes.length, audioData.remaining());
+						audioData.get(bytes, 0, n);
+						file.write(bytes, 0, n);
+					}
+				} else {
+					while (audioData.hasRemaining()) {
+						int n = 0;
+						for (; n < bytes.length && audioData.hasRemaining(); n += 2) {
+							short value = audioData.getShort();
+							bytes[n] = (byte) value;
+							bytes[n + 1] = (byte) (value >> 8);
+						}
+						file.write(bytes, 0, n);
+					}
+				}
+			} catch (IOException e) {
+				throw new LibRomoRuntimeException("Cannot write audio", e);
+			} finally {
+				audioData.limit(limit);
+			}
+			dataSize += written;
+		}
+		if (blocking) pace();
+		return written;
+	}
+
+	@Override
+	public synchronized int getPlaybackHeadPosition() {
+		if (!playing) return 0;
+		//without a clock, everything written is played right away
+		long head = realTime ? Math.min(frames(), now()) : frames();
+		return (int) (head - playFrom);
+	}
+
+	@Override
+	public synchronized boolean awaitPlayed(long timeoutNanos) {
+		if (!realTime) return true;
+		long deadline = System.nanoTime() + timeoutNanos;
+		long waitNs;
+		//a flush drops what has not been played, ending the wait
+		while (playing && (waitNs = (frames() - now()) * 1000000000L / sampleRate) > 0) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) return false;
+			waitNs = Math.min(waitNs, left);
+			try {
+				wait(waitNs / 1000000, (int) (waitNs % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void stop() {
+		pause();
+	}
+
+	@Override
+	public synchronized void pause() {
+		//what was written ahead plays once the sink plays again
+		if (playing && realTime) timeFrom = Math.min(frames(), now());
+		playing = false;
+	}
+
+	@Override
+	public synchronized void flush() {
+		if (!realTime) return;
+		//drop whatever has not been played yet
+		long played = playing ? now() : timeFrom;
+		if (played < frames()) {
+			dataSize = played * FRAME_BYTES;
+			try {
+				file.setLength((wav ? WAV_HEADER_SIZE : 0) + dataSize);
+				file.seek(file.length());
+			} catch (IOException e) {
+				throw new LibRomoRuntimeException("Cannot write audio", e);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Finish the file (completing the WAV header) and close it.
+	 */
+	@Override
+	public synchronized void release() {
+		if (released) return;
+		released = true;
+		try {
+			if (wav) {
+				file.seek(0);
+				writeHeader();
+			}
+			file.close();
+		} catch (IOException e) {
+			throw new LibRomoRuntimeException("Cannot finish audio file", e);
+		}
+	}
+
+	//the number of frames in the file
+	private long frames() {
+		return dataSize / FRAME_BYTES;
+	}
+
+	//the current position of the timeline in frames
+	private long now() {
+		return timeFrom + (System.nanoTime() - startNs) * sampleRate / 1000000000L;
+	}
+
+	//store silence for the time nothing was written while playing
+	private void padToNow() throws IOException {
+		if (!realTime || !playing) return;
+		long missing = (now() - frames()) * FRAME_BYTES;
+		if (missing <= 0) return;
+		Arrays.fill(bytes, (byte) 0);
+		while (missing > 0) {
+			int n = (int) Math.min(bytes.length, missing);
+			file.write(bytes, 0, n);
+			dataSize += n;
+			missing -= n;
+		}
+	}
+
+	//block while more than the buffer size is waiting to be played
+	private void pace() {
+		long waitNs;
+		synchronized (this) {
+			waitNs = realTime && playing ? (frames() - now() - bufferFrames) * 1000000000L / sampleRate : 0;
+		}
+		if (waitNs > 0) {
+			try {
+				Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		int byteRate = sampleRate * CHANNELS * 2;
+		int n = 0;
+		n = putAscii(bytes, n, "RIFF");
+		n = putInt(bytes, n, (int) (WAV_HEADER_SIZE - 8 + dataSize));
+		n = putAscii(bytes, n, "WAVE");
+		n = putAscii(bytes, n, "fmt ");
+		n = putInt(bytes, n, 16);
+		n = putShort(bytes, n, 1); //PCM
+		n = putShort(bytes, n, CHANNELS);
+		n = putInt(bytes, n, sampleRate);
+		n = putInt(bytes, n, byteRate);
+		n = putShort(bytes, n, CHANNELS * 2);
+		n = putShort(bytes, n, 16);
+		n = putAscii(bytes, n, "data");
+		n = putInt(bytes, n, (int) dataSize);
+		file.write(bytes, 0, n);
+	}
+
+	private static int putAscii(byte[] b, int n, String s) {
+		for (int i = 0; i < s.length(); i++) b[n++] = (byte) s.charAt(i);
+		return n;
+	}
+
+	private static int putInt(byte[] b, int n, int value) {
+		n = putShort(b, n, value);
+		return putShort(b, n, value >> 16);
+	}
+
+	private static int putShort(byte[] b, int n, int value) {
+		b[n++] = (byte) value;
+		b[n++] = (byte) (value >> 8);
+		return n;
+	}
+}
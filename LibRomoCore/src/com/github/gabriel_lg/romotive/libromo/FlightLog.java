@@ -0,0 +1,272 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The records of a FlightRecorder, as dumped to or read from a file.
+ * <p>
+ * The file starts with the magic "ROMOFR", a version byte and unsigned varints: the wall clock
+ * time (milliseconds since the epoch) the recorder was created at, the link timing (sample rate,
+ * symbol time in microseconds, clock high percentage and symbols per frame), the inter-command
+ * gap in milliseconds at the time of the dump, the number of records lost before the first one
+ * (overwritten in the ring buffer) and the number of records. Version 1 files lack the timing
+ * and gap; they are read as LinkTiming.DEFAULT without a gap. Each
+ * record is a zigzag varint of the time since the previous record in microseconds (the first
+ * one since the creation of the recorder), a byte with the address in bits 0-1 and the cause
+ * in bits 2-4, and a byte with the speed offset by 128. A record takes 3 or 4 bytes this way.
+ * @author Lambertus Gorter
+ *
+ */
+public final class FlightLog {
+	//the records allocated at first when reading
+	private static final int READ_CHUNK = 1024;
+	private static final String[] CAUSE_NAMES = {
+		"set", "refresh", "ramp", "sequence", "pause-stop", "disconnect-stop", "emergency-stop", "release-stop"
+	};
+
+	private final long wallClockMillis;
+	private final LinkTiming timing;
+	private final long interCommandGapMs;
+	private final long lost;
+	private final long[] records;
+
+	FlightLog(long wallClockMillis, LinkTiming timing, long interCommandGapMs, long lost, long[] records) {
+		this.wallClockMillis = wallClockMillis;
+		this.timing = timing;
+		this.interCommandGapMs = interCommandGapMs;
+		this.lost = lost;
+		this.records = records;
+	}
+
+	/**
+	 * Read a log from a stream, as written by FlightRecorder.dump.
+	 * @param in
+	 * @return
+	 * @throws IOException if the stream cannot be read, or is not a dump of a FlightRecorder
+	 */
+	public static FlightLog read(InputStream in) throws IOException {
+		for (int i = 0; i < FlightRecorder.MAGIC.length; i++) {
+			if (readByte(in) != FlightRecorder.MAGIC[i]) throw new IOException("Not a flight recorder dump");
+		}
+		int version = readByte(in);
+		if (version != FlightRecorder.VERSION && version != FlightRecorder.VERSION_1)
+			throw new IOException("Unsupported version: " + version);
+		long wallClockMillis = readVarint(in);
+		LinkTiming timing = LinkTiming.DEFAULT;
+		long interCommandGapMs = 0;
+		if (version != FlightRecorder.VERSION_1) {
+			int sampleRate = readInt(in);
+			int symbolMicros = readInt(in);
+			int clockHighPercent = readInt(in);
+			int frameSymbols = readInt(in);
+			try {
+				timing = new LinkTiming(sampleRate, symbolMicros, clockHighPercent, frameSymbols);
+			} catch (LibRomoRuntimeException e) {
+				IOException invalid = new IOException("Invalid link timing: " + e.getMessage());
+				invalid.initCause(e);
+				throw invalid;
+			}
+			interCommandGapMs = readVarint(in);
+		}
+		long lost = readVarint(in);
+		long count = readVarint(in);
+		if (count < 0 || count > Integer.MAX_VALUE) throw new IOException("Invalid record count: " + count);
+		//grown as the records are read, a corrupt count ends in an EOFException instead
+		long[] records = new long[(int) Math.min(count, READ_CHUNK)];
+		long micros = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == records.length) {
+				long[] grown = new long[(int) Math.min(count, (long) i * 2)];
+				System.arraycopy(records, 0, grown, 0, i);
+				records = grown;
+			}
+			long delta = readVarint(in);
+			micros += (delta >>> 1) ^ -(delta & 1);
+			int head = readByte(in);
+			int speed = readByte(in);
+			records[i] = (micros & FlightRecorder.TIME_MASK) << FlightRecorder.TIME_SHIFT
+					| (head >> 2 & 7) << FlightRecorder.CAUSE_SHIFT | (head & 3) << FlightRecorder.ADDRESS_SHIFT | speed;
+		}
+		return new FlightLog(wallClockMillis, timing, interCommandGapMs, lost, records);
+	}
+
+	/**
+	 * Write the log to a stream. The stream is not closed.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		out.write(FlightRecorder.MAGIC);
+		out.write(FlightRecorder.VERSION);
+		writeVarint(out, wallClockMillis);
+		writeVarint(out, timing.getSampleRate());
+		writeVarint(out, timing.getSymbolMicros());
+		writeVarint(out, timing.getClockHighPercent());
+		writeVarint(out, timing.getFrameSymbols());
+		writeVarint(out, interCommandGapMs);
+		writeVarint(out, lost);
+		writeVarint(out, records.length);
+		long previous = 0;
+		for (int i = 0; i < records.length; i++) {
+			long micros = getTimeMicros(i);
+			long delta = micros - previous;
+			previous = micros;
+			writeVarint(out, (delta << 1) ^ (delta >> 63));
+			out.write(getAddress(i) | getCause(i) << 2);
+			out.write(getSpeed(i) + FlightRecorder.SPEED_OFFSET);
+		}
+	}
+
+	/**
+	 * @return the wall clock time (milliseconds since the epoch) the recorder was created at
+	 */
+	public long getWallClockMillis() {
+		return wallClockMillis;
+	}
+
+	/**
+	 * @return the timing the commands were sent with
+	 */
+	public LinkTiming getTiming() {
+		return timing;
+	}
+
+	/**
+	 * @return the inter-command gap in milliseconds at the time of the dump
+	 */
+	public long getInterCommandGap() {
+		return interCommandGapMs;
+	}
+
+	/**
+	 * @return the number of records lost before the first one
+	 */
+	public long getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return the number of records
+	 */
+	public int size() {
+		return records.length;
+	}
+
+	/**
+	 * @param index
+	 * @return the time of the record since the creation of the recorder, in microseconds
+	 */
+	public long getTimeMicros(int index) {
+		return records[index] >>> FlightRecorder.TIME_SHIFT;
+	}
+
+	/**
+	 * @param index
+	 * @return the motor address of the record, 0 for an event of the link itself
+	 */
+	public int getAddress(int index) {
+		return (int) (records[index] >> FlightRecorder.ADDRESS_SHIFT) & 3;
+	}
+
+	/**
+	 * @param index
+	 * @return the speed of the record
+	 */
+	public int getSpeed(int index) {
+		return (int) (records[index] & 0xff) - FlightRecorder.SPEED_OFFSET;
+	}
+
+	/**
+	 * @param index
+	 * @return the cause of the record, one of the FlightRecorder.CAUSE_* constants
+	 */
+	public int getCause(int index) {
+		return (int) (records[index] >> FlightRecorder.CAUSE_SHIFT) & 7;
+	}
+
+	/**
+	 * @param cause one of the FlightRecorder.CAUSE_* constants
+	 * @return the name of the cause
+	 */
+	public static String getCauseName(int cause) {
+		return CAUSE_NAMES[cause];
+	}
+
+	/**
+	 * @return a line per record: time in milliseconds, address, speed and cause
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("# ").append(records.length).append(" records, ").append(lost).append(" lost before\n");
+		builder.append("# ").append(timing).append(", inter-command gap ").append(interCommandGapMs).append(" ms\n");
+		for (int i = 0; i < records.length; i++) {
+			long micros = getTimeMicros(i);
+			builder.append(micros / 1000).append('.');
+			long fraction = micros % 1000;
+			if (fraction < 100) builder.append('0');
+			if (fraction < 10) builder.append('0');
+			builder.append(fraction).append(' ').append(getAddress(i)).append(' ').append(getSpeed(i));
+			builder.append(" # ").append(getCauseName(getCause(i))).append('\n');
+		}
+		return builder.toString();
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) throw new EOFException("Truncated flight recorder dump");
+		return b;
+	}
+
+	private static int readInt(InputStream in) throws IOException {
+		long value = readVarint(in);
+		if (value > Integer.MAX_VALUE) throw new IOException("Value out of range: " + value);
+		return (int) value;
+	}
+
+	private static long readVarint(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte(in);
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Invalid varint");
+	}
+
+	private static void writeVarint(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+}
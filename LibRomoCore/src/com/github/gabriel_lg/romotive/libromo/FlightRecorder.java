@@ -0,0 +1,200 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on record of the commands put on the audio link: a fixed size ring buffer keeping the
+ * latest records. A record packs the time, motor address, speed and cause into a single long,
+ * so recording is a couple of volatile stores by the single recording thread; no lock, no
+ * allocation. Older records are overwritten.
+ * <p>
+ * The records can be dumped at any time, from any thread, into a compact binary file (see
+ * FlightLog for the format and for reading it back), along with the link timing and the
+ * inter-command gap, so the commands can be replayed the way they were sent.
+ * @author Lambertus Gorter
+ *
+ */
+public final class FlightRecorder {
+	/** The speed was set. */
+	public static final int CAUSE_SET = 0;
+	/** The speed was sent again by a refresh. */
+	public static final int CAUSE_REFRESH = 1;
+	/** A step of a ramp with limited acceleration. */
+	public static final int CAUSE_RAMP = 2;
+	/** A command of a sequence. */
+	public static final int CAUSE_SEQUENCE = 3;
+	/** Stopped because of a pause or the loss of the audio focus. */
+	public static final int CAUSE_PAUSE_STOP = 4;
+	/** The link stopped because the Romo got disconnected; address 0, no frame was sent. */
+	public static final int CAUSE_DISCONNECT_STOP = 5;
+	/** Stopped by an emergency stop. */
+	public static final int CAUSE_EMERGENCY_STOP = 6;
+	/** Stopped because the scheduler was destroyed. */
+	public static final int CAUSE_RELEASE_STOP = 7;
+
+	static final byte[] MAGIC = { 'R', 'O', 'M', 'O', 'F', 'R' };
+	static final int VERSION = 2;
+	/** The first version, without link timing and inter-command gap. */
+	static final int VERSION_1 = 1;
+	static final int SPEED_OFFSET = 128;
+	static final int ADDRESS_SHIFT = 8;
+	static final int CAUSE_SHIFT = 10;
+	static final int TIME_SHIFT = 13;
+	static final long TIME_MASK = (1L << 48) - 1;
+
+	private final LinkTiming timing;
+	private volatile long interCommandGapMs = 0;
+	private final AtomicLongArray records;
+	private final int mask;
+	//number of records published, the slot of a record is written before it is published
+	private final AtomicLong published = new AtomicLong(0);
+	//recording thread only
+	private long next = 0;
+	private final long epochNanos = System.nanoTime();
+	private final long epochMillis = System.currentTimeMillis();
+
+	/**
+	 * Create a recorder of commands sent with the default timing.
+	 * @param capacity the number of records kept, a power of two
+	 * @throws LibRomoRuntimeException if the capacity is not a power of two
+	 */
+	public FlightRecorder(int capacity) {
+		this(capacity, LinkTiming.DEFAULT);
+	}
+
+	/**
+	 * Create a recorder.
+	 * @param capacity the number of records kept, a power of two
+	 * @param timing the timing the commands are sent with
+	 * @throws LibRomoRuntimeException if the capacity is not a power of two
+	 */
+	public FlightRecorder(int capacity, LinkTiming timing) {
+		this.timing = timing;
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new LibRomoRuntimeException("Capacity is not a power of two: " + capacity);
+		records = new AtomicLongArray(capacity);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Record a command. Only to be called by the single recording thread.
+	 * @param nanos the time (System.nanoTime) the command was put on the link
+	 * @param address the motor address, 0 for an event of the link itself
+	 * @param speed
+	 * @param cause one of the CAUSE_* constants
+	 */
+	void record(long nanos, int address, int speed, int cause) {
+		long micros = Math.max(0, nanos - epochNanos) / 1000 & TIME_MASK;
+		long record = micros << TIME_SHIFT | cause << CAUSE_SHIFT | address << ADDRESS_SHIFT | (speed + SPEED_OFFSET);
+		long sequence = next++;
+		records.set((int) sequence & mask, record);
+		published.set(sequence + 1);
+	}
+
+	/**
+	 * @return the number of records kept at most
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Set the inter-command gap the commands are sent with, as stored in a dump.
+	 * @param milliseconds
+	 */
+	void setInterCommandGap(long milliseconds) {
+		interCommandGapMs = milliseconds;
+	}
+
+	/**
+	 * @return the number of commands recorded since the recorder was created, including the
+	 * ones overwritten since
+	 */
+	public long getRecordCount() {
+		return published.get();
+	}
+
+	/**
+	 * Take a snapshot of the records kept.
+	 * @return
+	 */
+	public FlightLog snapshot() {
+		long end = published.get();
+		long start = Math.max(0, end - records.length());
+		long[] copy = new long[(int) (end - start)];
+		for (long sequence = start; sequence < end; sequence++) copy[(int) (sequence - start)] = records.get((int) sequence & mask);
+		//records overwritten while copying are dropped; the slot of the record being written
+		//may be overwritten before it is published, hence the one extra. When all of them were
+		//overwritten, none are kept
+		long valid = Math.min(end, Math.max(start, published.get() + 1 - records.length()));
+		int skip = (int) (valid - start);
+		long[] kept = new long[copy.length - skip];
+		System.arraycopy(copy, skip, kept, 0, kept.length);
+		return new FlightLog(epochMillis, timing, interCommandGapMs, valid, kept);
+	}
+
+	/**
+	 * Dump the records kept to a stream. The stream is not closed.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void dump(OutputStream out) throws IOException {
+		snapshot().write(out);
+	}
+
+	/**
+	 * Dump the records kept to a file. An existing file is overwritten.
+	 * @param file
+	 * @throws LibRomoException if the file cannot be written
+	 */
+	public void dump(File file) throws LibRomoException {
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			dump(out);
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			throw new LibRomoException("Cannot write " + file, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
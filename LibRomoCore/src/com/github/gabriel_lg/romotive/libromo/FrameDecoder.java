@@ -0,0 +1,248 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+/**
+ * Streaming decoder of the audio protocol, doing what the Romo does with the audio it receives.
+ * It allows checking what is put on the link without a Romo attached. Only the Romo protocol
+ * (ProtocolDescriptor.romo) is decoded.
+ * <p>
+ * The left channel carries the clock: every symbol is a HI half followed by a LO half. The right
+ * channel carries the data, sampled when the clock falls: HI for a 1, LO for a 0. A frame is 12
+ * symbols: a 0 start bit, 2 address bits and 8 speed bits (msb first) and an even parity bit.
+ * Frames are counted from the first rising clock edge after silence or after the previous
+ * frame, so frames may follow each other without any silence in between. Silence in the middle
+ * of a frame drops the frame.
+ * <p>
+ * Positions are counted in (stereo) samples from the first sample decoded. Audio can be fed in
+ * chunks of any size, splitting frames anywhere.
+ * @author Lambertus Gorter
+ *
+ */
+public final class FrameDecoder {
+	/** The parity bit does not match. */
+	public static final int VIOLATION_PARITY = 0;
+	/** The first bit of a frame is not a 0. */
+	public static final int VIOLATION_START_BIT = 1;
+	/** Address 0 does not exist. */
+	public static final int VIOLATION_ADDRESS = 2;
+	/** A half of a symbol is too short or too long. */
+	public static final int VIOLATION_SYMBOL_TIMING = 3;
+	/** The clock went silent before the frame was complete. */
+	public static final int VIOLATION_TRUNCATED = 4;
+	public static final int VIOLATION_COUNT = 5;
+
+	//levels are HI or LO beyond a quarter of the full scale, silent in between
+	private static final int THRESHOLD = Short.MAX_VALUE / 4;
+
+	private final Listener listener;
+	//the nominal length in samples of the HI and LO halves of a symbol
+	private final int highHalf;
+	private final int lowHalf;
+	private final int tolerance;
+
+	private long position = 0;
+	private boolean leftPending = false;
+	private short pendingLeft;
+
+	private int clock = 0;
+	private long clockSince = 0;
+	private boolean inFrame = false;
+	private boolean ending = false;
+	private boolean timingViolated = false;
+	private int bits;
+	private int bitCount;
+	private long frameStart;
+	private long lastFrameEnd = -1;
+
+	private long frameCount = 0;
+	private final long[] violationCounts = new long[VIOLATION_COUNT];
+
+	/**
+	 * Create a decoder for the symbols put out by a WaveformBank with the default timing.
+	 * @param listener
+	 */
+	public FrameDecoder(Listener listener) {
+		this(LinkTiming.DEFAULT, listener);
+	}
+
+	/**
+	 * Create a decoder for the symbols put out by a WaveformBank with the given timing.
+	 * @param timing
+	 * @param listener
+	 * @throws LibRomoRuntimeException if the timing is not of frames of the Romo protocol
+	 */
+	public FrameDecoder(LinkTiming timing, Listener listener) {
+		if (timing.getFrameSymbols() != WaveformBank.FRAME_SYMBOLS)
+			throw new LibRomoRuntimeException("Not a timing of the Romo protocol: " + timing);
+		this.listener = listener;
+		highHalf = timing.getClockEdge(0) - timing.getSymbolStart(0);
+		lowHalf = timing.getSymbolStart(1) - timing.getClockEdge(0);
+		tolerance = Math.max(1, Math.min(highHalf, lowHalf) / 2);
+	}
+
+	/**
+	 * Decode the next chunk of interleaved stereo audio.
+	 * @param buffer
+	 * @param offsetInShorts
+	 * @param sizeInShorts
+	 */
+	public void decode(short[] buffer, int offsetInShorts, int sizeInShorts) {
+		int end = offsetInShorts + sizeInShorts;
+		for (int i = offsetInShorts; i < end; i++) {
+			if (!leftPending) {
+				pendingLeft = buffer[i];
+				leftPending = true;
+			} else {
+				leftPending = false;
+				sample(level(pendingLeft), level(buffer[i]));
+			}
+		}
+	}
+
+	/**
+	 * Finish the stream. A frame that is not complete yet is dropped.
+	 */
+	public void flush() {
+		if (inFrame) violation(VIOLATION_TRUNCATED, frameStart);
+		inFrame = false;
+		if (ending) lastFrameEnd = position;
+		ending = false;
+	}
+
+	private static int level(short value) {
+		if (value > THRESHOLD) return 1;
+		if (value < -THRESHOLD) return -1;
+		return 0;
+	}
+
+	private void sample(int left, int right) {
+		if (left != clock) {
+			long duration = position - clockSince;
+			int nominal = clock == 1 ? highHalf : lowHalf;
+			if (inFrame && clock != 0 && (duration < nominal - tolerance || duration > nominal + tolerance))
+				timingViolated = true;
+			if (clock == 1 && left == -1 && inFrame) {
+				//falling clock: sample the data
+				bits = (bits << 1) | (right == 1 ? 1 : 0);
+				if (++bitCount == WaveformBank.FRAME_SYMBOLS) {
+					inFrame = false;
+					ending = true;
+					completeFrame();
+				}
+			} else if (clock == -1 && ending) {
+				//the LO half of the last symbol ended
+				lastFrameEnd = position;
+				ending = false;
+			}
+			if (left == 1 && !inFrame) {
+				inFrame = true;
+				timingViolated = false;
+				bits = 0;
+				bitCount = 0;
+				frameStart = position;
+			} else if (left == 0 && inFrame) {
+				inFrame = false;
+				violation(VIOLATION_TRUNCATED, frameStart);
+			}
+			clock = left;
+			clockSince = position;
+		}
+		position++;
+	}
+
+	private void completeFrame() {
+		int parityBit = bits & 1;
+		int cmdSpeed = (bits >> 1) & 0xff;
+		int address = (bits >> 9) & 0x03;
+		int startBit = bits >> 11;
+		if (timingViolated) {
+			violation(VIOLATION_SYMBOL_TIMING, frameStart);
+		} else if (startBit != 0) {
+			violation(VIOLATION_START_BIT, frameStart);
+		} else if (((Integer.bitCount(address) + Integer.bitCount(cmdSpeed) + parityBit) & 1) != 0) {
+			violation(VIOLATION_PARITY, frameStart);
+		} else if (address == 0) {
+			violation(VIOLATION_ADDRESS, frameStart);
+		} else {
+			int speed = address != 2 ? cmdSpeed - 128 : 128 - cmdSpeed; //right motor is reversed
+			frameCount++;
+			listener.onFrame(address, speed, frameStart, lastFrameEnd < 0 ? -1 : frameStart - lastFrameEnd);
+		}
+	}
+
+	private void violation(int violation, long at) {
+		violationCounts[violation]++;
+		listener.onViolation(violation, at);
+	}
+
+	/**
+	 * @return the number of frames decoded
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * @param violation one of the VIOLATION_* constants
+	 * @return the number of frames dropped for the violation
+	 */
+	public long getViolationCount(int violation) {
+		return violationCounts[violation];
+	}
+
+	/**
+	 * @return the number of samples decoded
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Receives what the decoder finds. Called from the thread calling decode.
+	 * @author Lambertus Gorter
+	 *
+	 */
+	public interface Listener {
+
+		/**
+		 * A frame was decoded.
+		 * @param address 1 (left), 2 (right) or 3 (aux)
+		 * @param speed
+		 * @param startSample the position of the first sample of the frame
+		 * @param gapSamples the number of samples since the end of the previous frame, -1 for
+		 * the first frame
+		 */
+		public void onFrame(int address, int speed, long startSample, long gapSamples);
+
+		/**
+		 * A frame was dropped.
+		 * @param violation one of the VIOLATION_* constants
+		 * @param startSample the position of the first sample of the frame
+		 */
+		public void onViolation(int violation, long startSample);
+	}
+}
@@ -0,0 +1,150 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with fixed, power of two sized buckets. Bucket 0 counts latencies
+ * below 1 microsecond, bucket b latencies from 2^(b-1) up to 2^b microseconds and the last
+ * bucket everything longer.
+ * <p>
+ * Recording does not allocate or lock, but there must be only a single thread recording.
+ * Any thread may read; a reader sees each counter up to date, but not necessarily all of
+ * them from the same moment.
+ * @author Lambertus Gorter
+ *
+ */
+public final class LatencyHistogram {
+	public static final int BUCKET_COUNT = 24;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	LatencyHistogram() {
+	}
+
+	/**
+	 * Record a latency. Only to be called by the single recording thread.
+	 * @param nanos
+	 */
+	void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+		if (bucket >= BUCKET_COUNT) bucket = BUCKET_COUNT - 1;
+		buckets.set(bucket, buckets.get(bucket) + 1);
+		sum.set(sum.get() + nanos);
+		if (nanos > max.get()) max.set(nanos);
+	}
+
+	/**
+	 * Add the counts of another histogram to this one. Only to be used on copies.
+	 * @param other
+	 */
+	void add(LatencyHistogram other) {
+		for (int bucket = 0; bucket < BUCKET_COUNT; bucket++)
+			buckets.set(bucket, buckets.get(bucket) + other.buckets.get(bucket));
+		sum.set(sum.get() + other.sum.get());
+		if (other.max.get() > max.get()) max.set(other.max.get());
+	}
+
+	/**
+	 * @return a copy of this histogram, that is not recorded to anymore
+	 */
+	LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		copy.add(this);
+		return copy;
+	}
+
+	/**
+	 * Get the upper bound of a bucket, the lower bound being the upper bound of the previous one.
+	 * @param bucket
+	 * @return the upper bound in nanoseconds, Long.MAX_VALUE for the last bucket
+	 */
+	public static long getBucketUpperBoundNanos(int bucket) {
+		if (bucket >= BUCKET_COUNT - 1) return Long.MAX_VALUE;
+		return (1L << bucket) * 1000;
+	}
+
+	/**
+	 * @param bucket
+	 * @return the number of latencies recorded in the bucket
+	 */
+	public long getCount(int bucket) {
+		return buckets.get(bucket);
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) count += buckets.get(bucket);
+		return count;
+	}
+
+	/**
+	 * @return the mean latency in nanoseconds, 0 if nothing has been recorded
+	 */
+	public long getMeanNanos() {
+		long count = getCount();
+		return count == 0 ? 0 : sum.get() / count;
+	}
+
+	/**
+	 * @return the longest latency in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * Get an upper bound of a percentile, as precise as the buckets allow.
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile in nanoseconds, but never
+	 * more than the longest latency. 0 if nothing has been recorded.
+	 */
+	public long getPercentileNanos(double percentile) {
+		long count = getCount();
+		if (count == 0) return 0;
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+			seen += buckets.get(bucket);
+			if (seen >= rank && seen > 0) return Math.min(getBucketUpperBoundNanos(bucket), max.get());
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + getCount() + " mean=" + getMeanNanos() / 1000 + "us p50<=" + getPercentileNanos(50) / 1000
+				+ "us p99<=" + getPercentileNanos(99) / 1000 + "us max=" + getMaxNanos() / 1000 + "us";
+	}
+}
@@ -0,0 +1,146 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+/**
+ * The latencies of commands, from the moment a speed is set until it is put on the audio link,
+ * split by motor address, by cause and by stage.
+ * <p>
+ * The latency of a command counts from the first time its speed was set after the previous
+ * command to the same motor, so speeds that got coalesced count from the oldest one. A refresh
+ * counts from the moment the refresh was due. Both stages are measured at the AudioSink: the
+ * start of emission is the moment the write holding the frame of the command starts, the end
+ * of the write is when that write returned. Commands batched into a single write share both
+ * moments; audio still buffered by the sink after the write is not included.
+ * <p>
+ * Emergency stops are recorded apart, from the request until the stop frames are written.
+ * @author Lambertus Gorter
+ *
+ */
+public final class LatencyStats {
+	/** The command was sent because a speed was set. */
+	public static final int CAUSE_UPDATE = 0;
+	/** The command was sent again by a refresh. */
+	public static final int CAUSE_REFRESH = 1;
+	/** From setting the speed until the frame starts being written. */
+	public static final int STAGE_EMISSION = 0;
+	/** From setting the speed until the write of the frame returned. */
+	public static final int STAGE_WRITTEN = 1;
+
+	private static final int CAUSE_COUNT = 2;
+	private static final int STAGE_COUNT = 2;
+
+	private final LatencyHistogram[] histograms =
+			new LatencyHistogram[WaveformBank.ADDRESS_COUNT * CAUSE_COUNT * STAGE_COUNT];
+	private final LatencyHistogram emergencyStops = new LatencyHistogram();
+
+	LatencyStats() {
+		for (int i = 0; i < histograms.length; i++) histograms[i] = new LatencyHistogram();
+	}
+
+	/**
+	 * Record the latencies of a single command. Only to be called by the single recording thread.
+	 * @param address
+	 * @param cause CAUSE_UPDATE or CAUSE_REFRESH
+	 * @param emissionNs
+	 * @param writtenNs
+	 */
+	void record(int address, int cause, long emissionNs, long writtenNs) {
+		histograms[index(address, cause, STAGE_EMISSION)].record(emissionNs);
+		histograms[index(address, cause, STAGE_WRITTEN)].record(writtenNs);
+	}
+
+	/**
+	 * Record the latency of an emergency stop. Only to be called by the single recording thread.
+	 * @param nanos
+	 */
+	void recordEmergencyStop(long nanos) {
+		emergencyStops.record(nanos);
+	}
+
+	/**
+	 * @return a copy of these statistics, that is not recorded to anymore
+	 */
+	LatencyStats copy() {
+		LatencyStats copy = new LatencyStats();
+		for (int i = 0; i < histograms.length; i++) copy.histograms[i].add(histograms[i]);
+		copy.emergencyStops.add(emergencyStops);
+		return copy;
+	}
+
+	private static int index(int address, int cause, int stage) {
+		if (address < 1 || address > WaveformBank.ADDRESS_COUNT)
+			throw new LibRomoRuntimeException("Invalid address: " + address);
+		return ((address - 1) * CAUSE_COUNT + cause) * STAGE_COUNT + stage;
+	}
+
+	/**
+	 * Get the latencies of the commands to a single motor.
+	 * @param address 1 (left), 2 (right) or 3 (aux)
+	 * @param cause CAUSE_UPDATE or CAUSE_REFRESH
+	 * @param stage STAGE_EMISSION or STAGE_WRITTEN
+	 * @return
+	 */
+	public LatencyHistogram getHistogram(int address, int cause, int stage) {
+		return histograms[index(address, cause, stage)];
+	}
+
+	/**
+	 * Get the latencies of the commands to all motors together.
+	 * @param cause CAUSE_UPDATE or CAUSE_REFRESH
+	 * @param stage STAGE_EMISSION or STAGE_WRITTEN
+	 * @return
+	 */
+	public LatencyHistogram getHistogram(int cause, int stage) {
+		LatencyHistogram all = new LatencyHistogram();
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++)
+			all.add(histograms[index(address, cause, stage)]);
+		return all;
+	}
+
+	/**
+	 * Get the latencies of the emergency stops, from the request until the stop frames were
+	 * written. The maximum is the worst case stop latency seen.
+	 * @return
+	 */
+	public LatencyHistogram getEmergencyStopHistogram() {
+		return emergencyStops;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			for (int cause = 0; cause < CAUSE_COUNT; cause++) {
+				sb.append("address ").append(address).append(cause == CAUSE_UPDATE ? " update" : " refresh");
+				sb.append(": emission ").append(getHistogram(address, cause, STAGE_EMISSION));
+				sb.append(", written ").append(getHistogram(address, cause, STAGE_WRITTEN)).append('\n');
+			}
+		}
+		sb.append("emergency stop: ").append(emergencyStops).append('\n');
+		return sb.toString();
+	}
+}
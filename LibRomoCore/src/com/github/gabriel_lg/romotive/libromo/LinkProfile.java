@@ -0,0 +1,211 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * The settings of the link tuned by LinkAutotune: the timing, the output mode, the
+ * inter-command gap and the refresh interval. A profile is a properties file:
+ * <pre>
+ * sampleRate=48000
+ * symbolMicros=1000
+ * clockHighPercent=50
+ * outputMode=CONTINUOUS
+ * interCommandGapMs=4
+ * refreshIntervalMs=500
+ * </pre>
+ * Settings left out keep the defaults of the scheduler. The timing is fixed once the
+ * scheduler is created, so it is to be passed to the constructor of the scheduler (or
+ * MotorControl) before the rest of the profile is applied.
+ * @author Lambertus Gorter
+ *
+ */
+public final class LinkProfile {
+	private final LinkTiming timing;
+	private final OutputMode outputMode;
+	private final long interCommandGapMs;
+	private final long refreshIntervalMs;
+
+	/**
+	 * @param timing
+	 * @param outputMode
+	 * @param interCommandGapMs
+	 * @param refreshIntervalMs 0 to disable refreshes
+	 * @throws LibRomoRuntimeException if the gap or the refresh interval is negative
+	 */
+	public LinkProfile(LinkTiming timing, OutputMode outputMode, long interCommandGapMs, long refreshIntervalMs) {
+		if (interCommandGapMs < 0) throw new LibRomoRuntimeException("Invalid inter-command gap: " + interCommandGapMs);
+		if (refreshIntervalMs < 0) throw new LibRomoRuntimeException("Invalid refresh interval: " + refreshIntervalMs);
+		this.timing = timing;
+		this.outputMode = outputMode;
+		this.interCommandGapMs = interCommandGapMs;
+		this.refreshIntervalMs = refreshIntervalMs;
+	}
+
+	/**
+	 * @return the timing to create the scheduler with
+	 */
+	public LinkTiming getTiming() {
+		return timing;
+	}
+
+	/**
+	 * @return the way commands are put on the audio link
+	 */
+	public OutputMode getOutputMode() {
+		return outputMode;
+	}
+
+	/**
+	 * @return the inter-command gap in milliseconds
+	 */
+	public long getInterCommandGap() {
+		return interCommandGapMs;
+	}
+
+	/**
+	 * @return the refresh interval in milliseconds, 0 if refreshes are disabled
+	 */
+	public long getRefreshInterval() {
+		return refreshIntervalMs;
+	}
+
+	/**
+	 * Apply the output mode, inter-command gap and refresh interval to the scheduler.
+	 * @param scheduler
+	 * @throws LibRomoRuntimeException if the scheduler was created with another timing
+	 */
+	public void apply(CommandScheduler scheduler) {
+		if (!timing.equals(scheduler.getTiming()))
+			throw new LibRomoRuntimeException("Profile for " + timing + ", scheduler has " + scheduler.getTiming());
+		scheduler.setOutputMode(outputMode);
+		scheduler.setInterCommandGap(interCommandGapMs);
+		scheduler.setRefreshInterval(refreshIntervalMs);
+	}
+
+	/**
+	 * Read a profile from a file.
+	 * @param file
+	 * @return
+	 * @throws LibRomoException if the file cannot be read, or a setting is invalid
+	 */
+	public static LinkProfile read(File file) throws LibRomoException {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			return read(in);
+		} catch (IOException e) {
+			throw new LibRomoException(file + ": " + e.getMessage(), e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a profile from a stream, e.g. an asset of an app. The stream is not closed.
+	 * @param in
+	 * @return
+	 * @throws IOException if the stream cannot be read, or a setting is invalid
+	 */
+	public static LinkProfile read(InputStream in) throws IOException {
+		Properties properties = new Properties();
+		properties.load(in);
+		int sampleRate = getInt(properties, "sampleRate", WaveformBank.SAMPLE_RATE);
+		int symbolMicros = getInt(properties, "symbolMicros", LinkTiming.DEFAULT_SYMBOL_MICROS);
+		int clockHighPercent = getInt(properties, "clockHighPercent", LinkTiming.DEFAULT_CLOCK_HIGH_PERCENT);
+		OutputMode outputMode = OutputMode.COMMAND;
+		String mode = properties.getProperty("outputMode");
+		if (mode != null) {
+			try {
+				outputMode = OutputMode.valueOf(mode.trim());
+			} catch (IllegalArgumentException e) {
+				throw invalid("outputMode", e);
+			}
+		}
+		long gapMs = getLong(properties, "interCommandGapMs", 0);
+		long refreshMs = getLong(properties, "refreshIntervalMs", 0);
+		try {
+			return new LinkProfile(new LinkTiming(sampleRate, symbolMicros, clockHighPercent), outputMode, gapMs, refreshMs);
+		} catch (LibRomoRuntimeException e) {
+			throw invalid("profile", e);
+		}
+	}
+
+	private static int getInt(Properties properties, String key, int defaultValue) throws IOException {
+		long value = getLong(properties, key, defaultValue);
+		if (value != (int) value) throw new IOException(key + ": out of range");
+		return (int) value;
+	}
+
+	private static long getLong(Properties properties, String key, long defaultValue) throws IOException {
+		String value = properties.getProperty(key);
+		if (value == null) return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw invalid(key, e);
+		}
+	}
+
+	//IOException(String, Throwable) is not available before Android API level 9
+	private static IOException invalid(String key, Exception cause) {
+		IOException e = new IOException(key + ": " + cause.getMessage());
+		e.initCause(cause);
+		return e;
+	}
+
+	/**
+	 * Write the profile to a stream, in the format read by read. The stream is not closed.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		out.write(toString().getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	@Override
+	public String toString() {
+		return "sampleRate=" + timing.getSampleRate() + "\n"
+				+ "symbolMicros=" + timing.getSymbolMicros() + "\n"
+				+ "clockHighPercent=" + timing.getClockHighPercent() + "\n"
+				+ "outputMode=" + outputMode + "\n"
+				+ "interCommandGapMs=" + interCommandGapMs + "\n"
+				+ "refreshIntervalMs=" + refreshIntervalMs + "\n";
+	}
+}
@@ -0,0 +1,224 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of what went over the audio link. The link carries at most
+ * LinkTiming.getCommandsPerSecond commands per second; comparing that to the counters shows
+ * whether the speeds are set faster than the link can send them (many coalesced) and how much
+ * of its capacity is left (airtime).
+ * <p>
+ * All counters but the coalesced one are counted by the thread of the scheduler only.
+ * @author Lambertus Gorter
+ *
+ */
+public final class LinkStatistics {
+	private static final int EMITTED = 0; //one per address
+	private static final int REFRESHED = WaveformBank.ADDRESS_COUNT;
+	private static final int SKIPPED = REFRESHED + 1;
+	private static final int STOP_FRAMES = SKIPPED + 1;
+	private static final int EMERGENCY_STOP_FRAMES = STOP_FRAMES + 1;
+	private static final int FOCUS_DENIED = EMERGENCY_STOP_FRAMES + 1;
+	private static final int AIRTIME_NANOS = FOCUS_DENIED + 1;
+	private static final int COUNTERS = AIRTIME_NANOS + 1;
+
+	private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+	private final StripedCounter coalesced;
+	private final long coalescedCount;
+	private final long elapsedNanos;
+
+	LinkStatistics() {
+		coalesced = new StripedCounter();
+		coalescedCount = 0;
+		elapsedNanos = 0;
+	}
+
+	private LinkStatistics(LinkStatistics source, long elapsedNanos) {
+		for (int i = 0; i < COUNTERS; i++) counters.set(i, source.counters.get(i));
+		coalesced = null;
+		coalescedCount = source.coalesced.sum();
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	private void add(int counter, long delta) {
+		counters.set(counter, counters.get(counter) + delta);
+	}
+
+	/**
+	 * Count frames put on the link. Only to be called by the scheduler.
+	 * @param address
+	 * @param airtimeNanos the time the frame takes to play
+	 */
+	void emitted(int address, long airtimeNanos) {
+		add(EMITTED + address - 1, 1);
+		add(AIRTIME_NANOS, airtimeNanos);
+	}
+
+	/**
+	 * Count a command sent again by a refresh. Only to be called by the scheduler.
+	 */
+	void refreshed() {
+		add(REFRESHED, 1);
+	}
+
+	/**
+	 * Count a command skipped for not changing the speed. Only to be called by the scheduler.
+	 */
+	void skipped() {
+		add(SKIPPED, 1);
+	}
+
+	/**
+	 * Count stop frames sent on pause, disconnect or destroy. Only to be called by the scheduler.
+	 * @param frames
+	 */
+	void stopped(int frames) {
+		add(STOP_FRAMES, frames);
+	}
+
+	/**
+	 * Count stop frames sent by an emergency stop. Only to be called by the scheduler.
+	 * @param frames
+	 */
+	void emergencyStopped(int frames) {
+		add(EMERGENCY_STOP_FRAMES, frames);
+	}
+
+	/**
+	 * Count a request for the audio focus that was denied. Only to be called by the scheduler.
+	 */
+	void focusDenied() {
+		add(FOCUS_DENIED, 1);
+	}
+
+	/**
+	 * Count speeds that overwrote a speed not sent yet. May be called by any thread.
+	 * @param count
+	 */
+	void coalesced(int count) {
+		coalesced.add(count);
+	}
+
+	/**
+	 * @param elapsedNanos the time the scheduler has been running
+	 * @return a copy of these statistics, that is not counted to anymore
+	 */
+	LinkStatistics copy(long elapsedNanos) {
+		return new LinkStatistics(this, elapsedNanos);
+	}
+
+	/**
+	 * @param address 1 (left), 2 (right) or 3 (aux)
+	 * @return the number of frames sent to the motor, including refreshes and stop frames
+	 */
+	public long getEmitted(int address) {
+		if (address < 1 || address > WaveformBank.ADDRESS_COUNT)
+			throw new LibRomoRuntimeException("Invalid address: " + address);
+		return counters.get(EMITTED + address - 1);
+	}
+
+	/**
+	 * @return the number of frames sent to all motors
+	 */
+	public long getEmitted() {
+		long emitted = 0;
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) emitted += getEmitted(address);
+		return emitted;
+	}
+
+	/**
+	 * @return the number of speeds set that were overwritten by a newer speed before being sent
+	 */
+	public long getCoalesced() {
+		return coalesced != null ? coalesced.sum() : coalescedCount;
+	}
+
+	/**
+	 * @return the number of commands sent again by a refresh
+	 */
+	public long getRefreshed() {
+		return counters.get(REFRESHED);
+	}
+
+	/**
+	 * @return the number of commands not sent for not changing the speed of the motor
+	 */
+	public long getSkipped() {
+		return counters.get(SKIPPED);
+	}
+
+	/**
+	 * @return the number of stop frames sent on pause, disconnect or destroy
+	 */
+	public long getStopFrames() {
+		return counters.get(STOP_FRAMES);
+	}
+
+	/**
+	 * @return the number of stop frames sent by emergency stops
+	 */
+	public long getEmergencyStopFrames() {
+		return counters.get(EMERGENCY_STOP_FRAMES);
+	}
+
+	/**
+	 * @return the number of times the audio focus was requested again after being denied
+	 */
+	public long getFocusRetries() {
+		return counters.get(FOCUS_DENIED);
+	}
+
+	/**
+	 * @return the time spent playing frames, gaps and silence not included
+	 */
+	public long getAirtimeNanos() {
+		return counters.get(AIRTIME_NANOS);
+	}
+
+	/**
+	 * @return the time the scheduler had been running when these statistics were taken
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return the percentage of the running time the link was busy playing frames
+	 */
+	public double getUtilization() {
+		return elapsedNanos == 0 ? 0 : 100.0 * getAirtimeNanos() / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "emitted=" + getEmitted(1) + "/" + getEmitted(2) + "/" + getEmitted(3) + " coalesced=" + getCoalesced()
+				+ " refreshed=" + getRefreshed() + " skipped=" + getSkipped() + " stopFrames=" + getStopFrames()
+				+ " emergencyStopFrames=" + getEmergencyStopFrames() + " focusRetries=" + getFocusRetries()
+				+ " utilization=" + Math.round(getUtilization()) + "%";
+	}
+}
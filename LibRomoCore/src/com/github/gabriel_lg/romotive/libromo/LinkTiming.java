@@ -0,0 +1,220 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.util.Arrays;
+
+/**
+ * The timing model of the audio link: the sample rate, how long a symbol takes and where its
+ * clock edge falls, and how time converts into samples. Audio is always interleaved stereo, so
+ * a frame of the link takes two shorts for every sample.
+ * <p>
+ * Symbols keep their duration at any sample rate, so the logical waveform is the same: the
+ * boundaries and clock edges are placed at the sample nearest to their exact time, computed
+ * into tables when the timing is created. At rates that are not a multiple of the symbol rate
+ * the symbols differ by a sample in length, but the frame as a whole keeps its duration.
+ * @author Lambertus Gorter
+ *
+ */
+public final class LinkTiming {
+	public static final int CHANNELS = 2;
+	/** The symbol duration of the Romo protocol. */
+	public static final int DEFAULT_SYMBOL_MICROS = 1000;
+	/** The clock falls halfway each symbol. */
+	public static final int DEFAULT_CLOCK_HIGH_PERCENT = 50;
+	public static final LinkTiming DEFAULT = new LinkTiming(WaveformBank.SAMPLE_RATE);
+
+	private final int sampleRate;
+	private final int symbolMicros;
+	private final int clockHighPercent;
+	private final int frameSymbols;
+	//in samples from the start of the frame: the start of each symbol and the end of the frame
+	private final int[] symbolStarts;
+	//in samples from the start of the frame: the falling clock edge of each symbol
+	private final int[] clockEdges;
+	private final int frameShortSize;
+
+	/**
+	 * Create a timing model with the symbol timing of the Romo protocol.
+	 * @param sampleRate in Hz
+	 * @throws LibRomoRuntimeException if the sample rate is too low
+	 */
+	public LinkTiming(int sampleRate) {
+		this(sampleRate, DEFAULT_SYMBOL_MICROS, DEFAULT_CLOCK_HIGH_PERCENT);
+	}
+
+	/**
+	 * Create a timing model for frames of the Romo protocol.
+	 * @param sampleRate in Hz
+	 * @param symbolMicros the duration of a symbol in microseconds
+	 * @param clockHighPercent the part of a symbol the clock is HI, before its falling edge
+	 * @throws LibRomoRuntimeException if the clock halves of a symbol do not get a sample each
+	 */
+	public LinkTiming(int sampleRate, int symbolMicros, int clockHighPercent) {
+		this(sampleRate, symbolMicros, clockHighPercent, WaveformBank.FRAME_SYMBOLS);
+	}
+
+	/**
+	 * Create a timing model.
+	 * @param sampleRate in Hz
+	 * @param symbolMicros the duration of a symbol in microseconds
+	 * @param clockHighPercent the part of a symbol the clock is HI, before its falling edge
+	 * @param frameSymbols the number of symbols of a frame (see ProtocolDescriptor.getSymbolCount)
+	 * @throws LibRomoRuntimeException if the clock halves of a symbol do not get a sample each
+	 */
+	public LinkTiming(int sampleRate, int symbolMicros, int clockHighPercent, int frameSymbols) {
+		if (sampleRate <= 0 || symbolMicros <= 0 || clockHighPercent <= 0 || clockHighPercent >= 100 || frameSymbols <= 0)
+			throw new LibRomoRuntimeException("Invalid timing: " + sampleRate + " Hz, " + symbolMicros + " us, " + clockHighPercent + "%, "
+					+ frameSymbols + " symbols");
+		this.sampleRate = sampleRate;
+		this.symbolMicros = symbolMicros;
+		this.clockHighPercent = clockHighPercent;
+		this.frameSymbols = frameSymbols;
+		symbolStarts = new int[frameSymbols + 1];
+		clockEdges = new int[frameSymbols];
+		for (int symbol = 0; symbol <= frameSymbols; symbol++) {
+			symbolStarts[symbol] = getSample(symbol, 0);
+			if (symbol < frameSymbols) clockEdges[symbol] = getSample(symbol, clockHighPercent);
+		}
+		for (int symbol = 0; symbol < frameSymbols; symbol++) {
+			if (clockEdges[symbol] <= symbolStarts[symbol] || clockEdges[symbol] >= symbolStarts[symbol + 1])
+				throw new LibRomoRuntimeException("Symbols too short for " + sampleRate + " Hz: " + symbolMicros + " us, " + clockHighPercent + "%");
+		}
+		frameShortSize = symbolStarts[frameSymbols] * CHANNELS;
+	}
+
+	/**
+	 * Get the sample nearest to a point in time within a symbol.
+	 * @param symbol
+	 * @param percent of the symbol, 100 for the start of the next symbol
+	 * @return the sample, from the start of the frame
+	 */
+	public int getSample(int symbol, int percent) {
+		return (int) (((symbol * 100L + percent) * symbolMicros * sampleRate + 50000000L) / 100000000L);
+	}
+
+	/**
+	 * @return the sample rate in Hz
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return the duration of a symbol in microseconds
+	 */
+	public int getSymbolMicros() {
+		return symbolMicros;
+	}
+
+	/**
+	 * @return the part of a symbol the clock is HI, in percent
+	 */
+	public int getClockHighPercent() {
+		return clockHighPercent;
+	}
+
+	/**
+	 * @return the number of symbols of a frame
+	 */
+	public int getFrameSymbols() {
+		return frameSymbols;
+	}
+
+	/**
+	 * @param symbol 0 up to and including getFrameSymbols() for the end of the frame
+	 * @return the first sample of the symbol, from the start of the frame
+	 */
+	public int getSymbolStart(int symbol) {
+		return symbolStarts[symbol];
+	}
+
+	/**
+	 * @param symbol
+	 * @return the first LO sample of the clock of the symbol, from the start of the frame
+	 */
+	public int getClockEdge(int symbol) {
+		return clockEdges[symbol];
+	}
+
+	/**
+	 * @return the number of shorts of a single command frame
+	 */
+	public int getFrameShortSize() {
+		return frameShortSize;
+	}
+	/**
+	 * @return the time it takes to play a single command frame
+	 */
+	public long getFrameDurationNanos() {
+		return nanosForShorts(frameShortSize);
+	}
+
+	/**
+	 * Get the number of shorts that play for the given time.
+	 * @param milliseconds
+	 * @return
+	 */
+	public int shortsForMillis(long milliseconds) {
+		return (int) (milliseconds * sampleRate / 1000) * CHANNELS;
+	}
+
+	/**
+	 * Get the time it takes to play the given number of shorts.
+	 * @param shorts
+	 * @return
+	 */
+	public long nanosForShorts(long shorts) {
+		return shorts / CHANNELS * 1000000000L / sampleRate;
+	}
+
+	/**
+	 * Get the maximum number of commands per second the link can carry.
+	 * @param interCommandGapMs
+	 * @return
+	 */
+	public double getCommandsPerSecond(long interCommandGapMs) {
+		return 1e9 / (getFrameDurationNanos() + interCommandGapMs * 1000000L);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof LinkTiming)) return false;
+		LinkTiming other = (LinkTiming) o;
+		return sampleRate == other.sampleRate && symbolMicros == other.symbolMicros && clockHighPercent == other.clockHighPercent
+				&& frameSymbols == other.frameSymbols;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(new int[] { sampleRate, symbolMicros, clockHighPercent, frameSymbols });
+	}
+
+	@Override
+	public String toString() {
+		return sampleRate + " Hz, " + frameSymbols + " symbols of " + symbolMicros + " us, clock HI " + clockHighPercent + "%";
+	}
+}
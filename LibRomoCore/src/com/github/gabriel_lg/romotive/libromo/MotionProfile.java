@@ -0,0 +1,191 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+/**
+ * Ramping of the motor speeds towards their targets with limited acceleration and jerk.
+ * All arithmetic is in Q16 fixed point (16 fractional bits) on preallocated arrays, so a step
+ * takes a handful of integer operations and allocates nothing, cheap enough to run for every
+ * slot of the link.
+ * <p>
+ * Speeds are in motor speed units, accelerations in units per second and jerks in units per
+ * second squared. Only motors with an acceleration limit are ramped. The profile is not thread
+ * safe, the scheduler guards it by its lock.
+ * @author Lambertus Gorter
+ *
+ */
+final class MotionProfile {
+	static final int MAX_ACCELERATION = 100000;
+	static final int MAX_JERK = 1000000;
+
+	private static final int FRACTION_BITS = 16;
+	private static final long ONE = 1L << FRACTION_BITS;
+	//closer to the target than this counts as reached
+	private static final long REACHED = ONE >> 4;
+	//steps are limited, so a late step does not make the speed jump
+	private static final long MAX_STEP_MICROS = 100000;
+
+	//limits, Q16 per second and per second squared, 0 for no limit
+	private final long[] maxAcceleration = new long[WaveformBank.ADDRESS_COUNT + 1];
+	private final long[] maxJerk = new long[WaveformBank.ADDRESS_COUNT + 1];
+	//motion, Q16
+	private final long[] speed = new long[WaveformBank.ADDRESS_COUNT + 1];
+	private final long[] acceleration = new long[WaveformBank.ADDRESS_COUNT + 1];
+	private final long[] target = new long[WaveformBank.ADDRESS_COUNT + 1];
+
+	/**
+	 * Set the limits of the motor at the address. Limits beyond MAX_ACCELERATION and MAX_JERK
+	 * are clipped.
+	 * @param address
+	 * @param maxAcceleration in units per second, 0 to set speeds without ramping
+	 * @param maxJerk in units per second squared, 0 for no limit
+	 */
+	void setLimits(int address, int maxAcceleration, int maxJerk) {
+		this.maxAcceleration[address] = (long) clip(maxAcceleration, MAX_ACCELERATION) << FRACTION_BITS;
+		this.maxJerk[address] = (long) clip(maxJerk, MAX_JERK) << FRACTION_BITS;
+	}
+
+	/**
+	 * @param address
+	 * @return true if the speed of the motor at the address is ramped
+	 */
+	boolean isLimited(int address) {
+		return maxAcceleration[address] != 0;
+	}
+
+	/**
+	 * Set the speed to ramp the motor at the address to.
+	 * @param address
+	 * @param speed
+	 */
+	void setTarget(int address, int speed) {
+		target[address] = (long) speed << FRACTION_BITS;
+	}
+
+	/**
+	 * Set the motor at the address to the given speed straight away, without ramping.
+	 * @param address
+	 * @param speed
+	 */
+	void jump(int address, int speed) {
+		target[address] = (long) speed << FRACTION_BITS;
+		this.speed[address] = target[address];
+		acceleration[address] = 0;
+	}
+
+	/**
+	 * Cancel all ramps and set all motors to stop.
+	 */
+	void stop() {
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) jump(address, 0);
+	}
+
+	/**
+	 * @param address
+	 * @return the current speed of the motor at the address, rounded to whole units
+	 */
+	int getSpeed(int address) {
+		return (int) ((speed[address] + ONE / 2) >> FRACTION_BITS);
+	}
+
+	/**
+	 * @param address
+	 * @return true if the motor at the address is ramped and has not reached its target yet
+	 */
+	boolean isMoving(int address) {
+		return isLimited(address) && (speed[address] != target[address] || acceleration[address] != 0);
+	}
+
+	/**
+	 * @return true if any motor has not reached its target yet
+	 */
+	boolean isMoving() {
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			if (isMoving(address)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Advance the motion of all ramped motors by the given time.
+	 * <p>
+	 * The acceleration heads for the limit in the direction of the target, but no further than
+	 * sqrt(2 * jerk * error): the acceleration that can just be brought back to 0, at the limit
+	 * of the jerk, by the time the target is reached. It changes by at most the jerk limit. The
+	 * speed is set to the target once it is reached or passed.
+	 * @param nanos the time since the previous step
+	 */
+	void step(long nanos) {
+		long micros = Math.min(Math.max(nanos / 1000, 0), MAX_STEP_MICROS);
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			if (!isMoving(address)) continue;
+			long error = target[address] - speed[address];
+			long limit = maxAcceleration[address];
+			long jerk = maxJerk[address];
+			//Q16 * Q16 is Q32, of which the root is Q16 again
+			if (jerk != 0) limit = Math.min(limit, sqrt(2 * jerk * Math.abs(error)));
+			long desired = error > 0 ? limit : error < 0 ? -limit : 0;
+			long a = desired;
+			if (jerk != 0) {
+				long change = jerk * micros / 1000000;
+				a = acceleration[address];
+				a = desired > a ? Math.min(desired, a + change) : Math.max(desired, a - change);
+			}
+			long v = speed[address] + a * micros / 1000000;
+			long left = target[address] - v;
+			if (Math.abs(left) < REACHED || (error > 0 && left < 0) || (error < 0 && left > 0)) {
+				v = target[address];
+				a = 0;
+			}
+			speed[address] = v;
+			acceleration[address] = a;
+		}
+	}
+
+	private static int clip(int value, int max) {
+		return Math.max(0, Math.min(value, max));
+	}
+
+	/**
+	 * @param x non negative
+	 * @return the integer square root of x
+	 */
+	private static long sqrt(long x) {
+		long root = 0;
+		long bit = 1L << 62;
+		while (bit > x) bit >>= 2;
+		while (bit != 0) {
+			if (x >= root + bit) {
+				x -= root + bit;
+				root = (root >> 1) + bit;
+			} else {
+				root >>= 1;
+			}
+			bit >>= 2;
+		}
+		return root;
+	}
+}
@@ -0,0 +1,352 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Dead reckoning of the pose of the Romo from the commands actually sent. The scheduler feeds
+ * every command for the left and right motor to the odometry with the moment its frame ends
+ * playing, which is when the Romo takes the speed, rather than the moment the speed was set.
+ * The speeds are turned into wheel velocities by a linear model and integrated along arcs
+ * into a position (x, y) in millimeters and a heading in radians. At heading 0 the Romo drives
+ * along the x axis, a positive heading is turned counterclockwise.
+ * <p>
+ * The estimate is published as a sequence-locked snapshot: a pose, the wheel velocities from
+ * then on and the changes of speed queued after it. Reading it takes no lock and allocates
+ * nothing, so planning threads may poll it at any rate; a read that overlaps an update is
+ * retried. Since commands are sent ahead of the audio playing, changes may lie in the future;
+ * the pose is integrated segment by segment through the changes in the order they take effect,
+ * up to the time asked for. Changes that have taken effect are folded into the pose as
+ * commands come in, so the pose is never taken back. A command taking effect before changes
+ * queued means the audio in between was dropped (an emergency stop, say), those changes are
+ * discarded. A command estimated to take effect before the pose, which has taken effect
+ * already, takes effect at the pose. When more changes are queued than the queue holds, the
+ * oldest is folded ahead of time.
+ * <p>
+ * Without feedback the estimate drifts: wheels slip and the model of the speeds is not exact.
+ * @author Lambertus Gorter
+ *
+ */
+public final class Odometry {
+	private static final int LEFT = 1;
+	private static final int RIGHT = 2;
+	private static final int QUEUE_CAPACITY = 32;
+
+	private final double wheelBaseMm;
+	private final double leftMaxMmPerS;
+	private final double rightMaxMmPerS;
+	private final int deadZone;
+
+	//the snapshot, odd while being updated
+	private volatile int sequence = 0;
+	private volatile double x = 0;
+	private volatile double y = 0;
+	private volatile double heading = 0;
+	//the time of the pose, 0 until the first command or reset
+	private volatile long time = 0;
+	//the wheel velocities from the time of the pose on
+	private volatile double left = 0;
+	private volatile double right = 0;
+	//changes of the wheel velocities after the time of the pose, in the order they take effect
+	private volatile int queued = 0;
+	private final AtomicLongArray queueTimes = new AtomicLongArray(QUEUE_CAPACITY);
+	private final AtomicLongArray queueLefts = new AtomicLongArray(QUEUE_CAPACITY);
+	private final AtomicLongArray queueRights = new AtomicLongArray(QUEUE_CAPACITY);
+	//only used by the writers, holding the lock
+	private final Pose scratch = new Pose();
+
+	/**
+	 * Create an odometry of a Romo with wheels reaching the speed in proportion to the speed sent.
+	 * @param wheelBaseMm the distance between the wheels (tracks) in millimeters
+	 * @param leftMaxMmPerS the speed of the left wheel at SPEED_MAX_FORWARD in millimeters per second
+	 * @param rightMaxMmPerS the speed of the right wheel at SPEED_MAX_FORWARD in millimeters per second
+	 * @throws LibRomoRuntimeException if a value is out of range
+	 */
+	public Odometry(int wheelBaseMm, int leftMaxMmPerS, int rightMaxMmPerS) {
+		this(wheelBaseMm, leftMaxMmPerS, rightMaxMmPerS, 0);
+	}
+
+	/**
+	 * Create an odometry of a Romo with motors that do not turn up to a dead zone, and from
+	 * there reach the speed in proportion to the speed sent. The speeds are those set, so with
+	 * a SpeedCalibration skipping the dead zone of the motors, the dead zone here is 0.
+	 * @param wheelBaseMm the distance between the wheels (tracks) in millimeters
+	 * @param leftMaxMmPerS the speed of the left wheel at SPEED_MAX_FORWARD in millimeters per second
+	 * @param rightMaxMmPerS the speed of the right wheel at SPEED_MAX_FORWARD in millimeters per second
+	 * @param deadZone the highest speed at which the motors do not turn yet, 0 up to 126
+	 * @throws LibRomoRuntimeException if a value is out of range
+	 */
+	public Odometry(int wheelBaseMm, int leftMaxMmPerS, int rightMaxMmPerS, int deadZone) {
+		if (wheelBaseMm <= 0 || leftMaxMmPerS <= 0 || rightMaxMmPerS <= 0)
+			throw new LibRomoRuntimeException("Invalid geometry: " + wheelBaseMm + ", " + leftMaxMmPerS + ", " + rightMaxMmPerS);
+		if (deadZone < 0 || deadZone >= CommandScheduler.SPEED_MAX_FORWARD)
+			throw new LibRomoRuntimeException("Invalid dead zone: " + deadZone);
+		this.wheelBaseMm = wheelBaseMm;
+		this.leftMaxMmPerS = leftMaxMmPerS;
+		this.rightMaxMmPerS = rightMaxMmPerS;
+		this.deadZone = deadZone;
+	}
+
+	/**
+	 * A command takes effect. Only the left and right motor count, other addresses are ignored.
+	 * @param address
+	 * @param speed
+	 * @param nanos the System.nanoTime the frame of the command ends playing, may lie ahead
+	 */
+	synchronized void emitted(int address, int speed, long nanos) {
+		if (address != LEFT && address != RIGHT) return;
+		double velocity = velocity(address, speed);
+		int next = begin();
+		if (time == 0) {
+			time = nanos;
+			if (address == LEFT) left = velocity;
+			else right = velocity;
+		} else {
+			//the audio of the changes taking effect after this one was dropped
+			while (queued > 0 && queueTimes.get(queued - 1) - nanos > 0) queued--;
+			//the changes folded into the pose have taken effect, there is no taking them back
+			if (nanos - time < 0) nanos = time;
+			if (queued == QUEUE_CAPACITY) fold(queueTimes.get(0));
+			int last = queued - 1;
+			double newLeft = last < 0 ? left : Double.longBitsToDouble(queueLefts.get(last));
+			double newRight = last < 0 ? right : Double.longBitsToDouble(queueRights.get(last));
+			if (address == LEFT) newLeft = velocity;
+			else newRight = velocity;
+			queueTimes.set(queued, nanos);
+			queueLefts.set(queued, Double.doubleToRawLongBits(newLeft));
+			queueRights.set(queued, Double.doubleToRawLongBits(newRight));
+			queued++;
+			fold(System.nanoTime());
+		}
+		end(next);
+	}
+
+	/**
+	 * Set the pose, e.g. when the Romo is put down at a known spot. The wheels keep their speed.
+	 * @param xMm
+	 * @param yMm
+	 * @param headingRadians
+	 */
+	public synchronized void reset(double xMm, double yMm, double headingRadians) {
+		long now = System.nanoTime();
+		int next = begin();
+		fold(now);
+		//a full queue may have folded a change ahead of now, the pose is then set at that change
+		if (time == 0 || now - time > 0) time = now;
+		x = xMm;
+		y = yMm;
+		heading = headingRadians;
+		end(next);
+	}
+
+	/**
+	 * Move the pose along the changes taking effect up to the given time, and drop them from
+	 * the queue. Only to be called by a writer, holding the lock, between begin and end.
+	 * @param until
+	 */
+	private void fold(long until) {
+		int count = 0;
+		while (count < queued && queueTimes.get(count) - until <= 0) {
+			integrate(x, y, heading, left, right, time, queueTimes.get(count), scratch);
+			setPose(scratch, Double.longBitsToDouble(queueLefts.get(count)), Double.longBitsToDouble(queueRights.get(count)));
+			count++;
+		}
+		if (count == 0) return;
+		for (int i = count; i < queued; i++) {
+			queueTimes.set(i - count, queueTimes.get(i));
+			queueLefts.set(i - count, queueLefts.get(i));
+			queueRights.set(i - count, queueRights.get(i));
+		}
+		queued -= count;
+	}
+
+	private void setPose(Pose pose, double left, double right) {
+		x = pose.x;
+		y = pose.y;
+		heading = pose.heading;
+		time = pose.nanos;
+		this.left = left;
+		this.right = right;
+	}
+
+	private int begin() {
+		int next = sequence + 1;
+		sequence = next;
+		return next;
+	}
+
+	private void end(int next) {
+		sequence = next + 1;
+	}
+
+	/**
+	 * Get the pose now.
+	 * @param pose filled with the estimate
+	 */
+	public void getPose(Pose pose) {
+		getPose(pose, System.nanoTime());
+	}
+
+	/**
+	 * Get the pose at a given time, integrated through the changes of speed taking effect
+	 * up to then. No history is kept before the time of the pose, a time before it gets the
+	 * pose itself, standing still.
+	 * @param pose filled with the estimate
+	 * @param nanos a System.nanoTime
+	 */
+	public void getPose(Pose pose, long nanos) {
+		int before;
+		do {
+			before = sequence;
+			long time = this.time;
+			if (time == 0 || nanos - time < 0) {
+				pose.set(x, y, heading, nanos, 0, 0);
+			} else {
+				pose.set(x, y, heading, time, 0, 0);
+				double left = this.left;
+				double right = this.right;
+				long from = time;
+				int count = Math.min(queued, QUEUE_CAPACITY);
+				for (int i = 0; i < count; i++) {
+					long at = queueTimes.get(i);
+					if (at - nanos > 0) break;
+					integrate(pose.x, pose.y, pose.heading, left, right, from, at, pose);
+					from = at;
+					left = Double.longBitsToDouble(queueLefts.get(i));
+					right = Double.longBitsToDouble(queueRights.get(i));
+				}
+				integrate(pose.x, pose.y, pose.heading, left, right, from, nanos, pose);
+			}
+		} while ((before & 1) != 0 || before != sequence);
+	}
+
+	/**
+	 * Move a pose along an arc.
+	 * @param x
+	 * @param y
+	 * @param heading
+	 * @param left the velocity of the left wheel
+	 * @param right the velocity of the right wheel
+	 * @param from the time of the pose
+	 * @param to the time to move to, before from to move back
+	 * @param pose filled with the result
+	 */
+	private void integrate(double x, double y, double heading, double left, double right, long from, long to, Pose pose) {
+		double seconds = (to - from) / 1e9;
+		double linear = (left + right) / 2;
+		double angular = (right - left) / wheelBaseMm;
+		double turn = angular * seconds;
+		double endHeading = heading + turn;
+		if (Math.abs(turn) < 1e-9) {
+			x += linear * seconds * Math.cos(heading);
+			y += linear * seconds * Math.sin(heading);
+		} else {
+			double radius = linear / angular;
+			x += radius * (Math.sin(endHeading) - Math.sin(heading));
+			y -= radius * (Math.cos(endHeading) - Math.cos(heading));
+		}
+		pose.set(x, y, normalize(endHeading), to, linear, angular);
+	}
+
+	private double velocity(int address, int speed) {
+		int magnitude = Math.abs(speed);
+		if (magnitude <= deadZone) return 0;
+		double max = address == LEFT ? leftMaxMmPerS : rightMaxMmPerS;
+		double velocity = max * (magnitude - deadZone) / (CommandScheduler.SPEED_MAX_FORWARD - deadZone);
+		return speed < 0 ? -velocity : velocity;
+	}
+
+	private static double normalize(double angle) {
+		return Math.IEEEremainder(angle, 2 * Math.PI);
+	}
+
+	/**
+	 * A pose of the Romo, filled in by the odometry. Keep one per reading thread to read
+	 * without allocating.
+	 * @author Lambertus Gorter
+	 *
+	 */
+	public static final class Pose {
+		private double x;
+		private double y;
+		private double heading;
+		private long nanos;
+		private double linear;
+		private double angular;
+
+		private void set(double x, double y, double heading, long nanos, double linear, double angular) {
+			this.x = x;
+			this.y = y;
+			this.heading = heading;
+			this.nanos = nanos;
+			this.linear = linear;
+			this.angular = angular;
+		}
+
+		/**
+		 * @return the position along the x axis in millimeters
+		 */
+		public double getX() {
+			return x;
+		}
+
+		/**
+		 * @return the position along the y axis in millimeters
+		 */
+		public double getY() {
+			return y;
+		}
+
+		/**
+		 * @return the heading in radians, between -PI and PI, counterclockwise from the x axis
+		 */
+		public double getHeading() {
+			return heading;
+		}
+
+		/**
+		 * @return the System.nanoTime the pose is estimated for
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return the velocity of the center in millimeters per second
+		 */
+		public double getLinearVelocity() {
+			return linear;
+		}
+
+		/**
+		 * @return the angular velocity in radians per second, positive is counterclockwise
+		 */
+		public double getAngularVelocity() {
+			return angular;
+		}
+	}
+}
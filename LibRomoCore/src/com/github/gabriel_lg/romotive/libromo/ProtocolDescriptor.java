@@ -0,0 +1,359 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+/**
+ * Describes the frame layout and symbol shapes of an audio jack protocol, to be compiled into
+ * the frame tables of a WaveformBank. The Romo is one built-in descriptor (see romo); other
+ * robots and toys with a similar pulse-width protocol are described the same way, and cost
+ * nothing extra when sending, since every frame is precomputed.
+ * <p>
+ * A frame is a sequence of fields, each sent as a symbol per bit: constant bits (like a start
+ * bit), the motor address, the speed and a parity bit over the address and speed. A symbol is
+ * a number of segments, each with a level per channel, ending at a percentage of the symbol or
+ * at the clock edge of the LinkTiming.
+ * <p>
+ * The motor addresses and speeds of the scheduler are mapped on field values per address:
+ * the code sent as address, and the speed value for a stop and for full speed forward. Speeds
+ * in between are scaled linearly, full speed backward mirrors full speed forward.
+ * <p>
+ * A descriptor is compiled when a WaveformBank is built, and copied by a CommandScheduler;
+ * changing it afterwards affects neither.
+ * @author Lambertus Gorter
+ *
+ */
+public final class ProtocolDescriptor {
+	public static final int LEVEL_LO = -1;
+	public static final int LEVEL_SILENT = 0;
+	public static final int LEVEL_HI = 1;
+	/** The end of a segment at the clock edge of the LinkTiming, instead of at a percentage. */
+	public static final int CLOCK_EDGE = -1;
+	/** The number of 1 bits in the address, speed and parity bit is even. */
+	public static final int PARITY_EVEN = 0;
+	/** The number of 1 bits in the address, speed and parity bit is odd. */
+	public static final int PARITY_ODD = 1;
+	public static final int MAX_SYMBOLS = 63;
+
+	private static final int FIELD_CONSTANT = 0;
+	private static final int FIELD_ADDRESS = 1;
+	private static final int FIELD_SPEED = 2;
+	private static final int FIELD_PARITY = 3;
+
+	private final String name;
+	private int[] fieldKinds = new int[4];
+	private int[] fieldWidths = new int[4];
+	private int[] fieldValues = new int[4];
+	private int fieldCount = 0;
+	private boolean msbFirst = true;
+	//per bit value (0 or 1) the segments of its symbol
+	private final int[][] segmentEnds = new int[2][];
+	private final int[][] leftLevels = new int[2][];
+	private final int[][] rightLevels = new int[2][];
+	//per motor address
+	private final boolean[] mapped = new boolean[WaveformBank.ADDRESS_COUNT + 1];
+	private final int[] addressCodes = new int[WaveformBank.ADDRESS_COUNT + 1];
+	private final int[] stopValues = new int[WaveformBank.ADDRESS_COUNT + 1];
+	private final int[] forwardValues = new int[WaveformBank.ADDRESS_COUNT + 1];
+
+	/**
+	 * Create an empty descriptor.
+	 * @param name of the protocol
+	 */
+	public ProtocolDescriptor(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Create a descriptor of the Romo protocol: a 0 start bit, 2 address bits and 8 speed bits
+	 * msb first, and an even parity bit. The left channel is the clock, HI up to the clock edge
+	 * of every symbol and LO after it, the right channel is the data. The speed is sent offset
+	 * by 128, reversed for the right motor: 1 up to 255, 128 is a stop. How the motors respond to
+	 * these values differs per motor, which is corrected with a SpeedCalibration.
+	 * @return
+	 */
+	public static ProtocolDescriptor romo() {
+		ProtocolDescriptor romo = new ProtocolDescriptor("Romo");
+		romo.addConstant(0, 1);
+		romo.addAddress(2);
+		romo.addSpeed(8);
+		romo.addParity(PARITY_EVEN);
+		int[] ends = { CLOCK_EDGE, 100 };
+		int[] clock = { LEVEL_HI, LEVEL_LO };
+		romo.setSymbol(true, ends, clock, new int[] { LEVEL_HI, LEVEL_HI });
+		romo.setSymbol(false, ends, clock, new int[] { LEVEL_LO, LEVEL_LO });
+		romo.mapAddress(1, 1, 128, 255);
+		romo.mapAddress(2, 2, 128, 1); //right motor is reversed
+		romo.mapAddress(3, 3, 128, 255);
+		return romo;
+	}
+
+	/**
+	 * @return the name of the protocol
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Append constant bits to the frame.
+	 * @param value
+	 * @param width in bits
+	 */
+	public void addConstant(int value, int width) {
+		addField(FIELD_CONSTANT, width, value);
+	}
+
+	/**
+	 * Append the address field to the frame.
+	 * @param width in bits
+	 */
+	public void addAddress(int width) {
+		addField(FIELD_ADDRESS, width, 0);
+	}
+
+	/**
+	 * Append the speed field to the frame.
+	 * @param width in bits
+	 */
+	public void addSpeed(int width) {
+		addField(FIELD_SPEED, width, 0);
+	}
+
+	/**
+	 * Append a parity bit over the address and speed to the frame.
+	 * @param rule PARITY_EVEN or PARITY_ODD
+	 */
+	public void addParity(int rule) {
+		if (rule != PARITY_EVEN && rule != PARITY_ODD) throw new LibRomoRuntimeException("Invalid parity rule: " + rule);
+		addField(FIELD_PARITY, 1, rule);
+	}
+
+	private void addField(int kind, int width, int value) {
+		if (width < 1 || width > 31) throw new LibRomoRuntimeException("Invalid field width: " + width);
+		if (fieldCount == fieldKinds.length) {
+			fieldKinds = grow(fieldKinds);
+			fieldWidths = grow(fieldWidths);
+			fieldValues = grow(fieldValues);
+		}
+		fieldKinds[fieldCount] = kind;
+		fieldWidths[fieldCount] = width;
+		fieldValues[fieldCount++] = value;
+	}
+
+	/**
+	 * Set the order the bits of the fields are sent in. Default is most significant bit first.
+	 * @param msbFirst
+	 */
+	public void setMsbFirst(boolean msbFirst) {
+		this.msbFirst = msbFirst;
+	}
+
+	/**
+	 * Set the shape of the symbol of a bit value.
+	 * @param bit
+	 * @param ends the end of each segment, in percent of the symbol or CLOCK_EDGE, ending at 100
+	 * @param left the level of the left channel in each segment: LEVEL_HI, LEVEL_LO or LEVEL_SILENT
+	 * @param right the level of the right channel in each segment
+	 * @throws LibRomoRuntimeException if the segments are invalid
+	 */
+	public void setSymbol(boolean bit, int[] ends, int[] left, int[] right) {
+		if (ends.length == 0 || left.length != ends.length || right.length != ends.length || ends[ends.length - 1] != 100)
+			throw new LibRomoRuntimeException("Segments must have a level per channel and end at 100%");
+		for (int i = 0; i < ends.length; i++) {
+			if (ends[i] != CLOCK_EDGE && (ends[i] <= 0 || ends[i] > 100))
+				throw new LibRomoRuntimeException("Invalid end of segment: " + ends[i]);
+			if (Math.abs(left[i]) > 1 || Math.abs(right[i]) > 1)
+				throw new LibRomoRuntimeException("Invalid level in segment " + i);
+		}
+		int value = bit ? 1 : 0;
+		segmentEnds[value] = ends.clone();
+		leftLevels[value] = left.clone();
+		rightLevels[value] = right.clone();
+	}
+
+	/**
+	 * Map a motor address on the values sent.
+	 * @param address the motor address (1, 2 or 3)
+	 * @param code the value of the address field
+	 * @param stopValue the value of the speed field for a stop
+	 * @param forwardValue the value of the speed field for SPEED_MAX_FORWARD
+	 */
+	public void mapAddress(int address, int code, int stopValue, int forwardValue) {
+		if (address < 1 || address > WaveformBank.ADDRESS_COUNT)
+			throw new LibRomoRuntimeException("Invalid address: " + address);
+		mapped[address] = true;
+		addressCodes[address] = code;
+		stopValues[address] = stopValue;
+		forwardValues[address] = forwardValue;
+	}
+
+	/**
+	 * @return the number of symbols of a frame, to create the LinkTiming with
+	 */
+	public int getSymbolCount() {
+		int count = 0;
+		for (int i = 0; i < fieldCount; i++) count += fieldWidths[i];
+		return count;
+	}
+
+	/**
+	 * @return a copy of this descriptor, not affected by later changes to either
+	 */
+	ProtocolDescriptor copy() {
+		ProtocolDescriptor copy = new ProtocolDescriptor(name);
+		copy.fieldKinds = fieldKinds.clone();
+		copy.fieldWidths = fieldWidths.clone();
+		copy.fieldValues = fieldValues.clone();
+		copy.fieldCount = fieldCount;
+		copy.msbFirst = msbFirst;
+		//symbols are replaced as a whole, never changed
+		for (int value = 0; value < 2; value++) {
+			copy.segmentEnds[value] = segmentEnds[value];
+			copy.leftLevels[value] = leftLevels[value];
+			copy.rightLevels[value] = rightLevels[value];
+		}
+		System.arraycopy(mapped, 0, copy.mapped, 0, mapped.length);
+		System.arraycopy(addressCodes, 0, copy.addressCodes, 0, addressCodes.length);
+		System.arraycopy(stopValues, 0, copy.stopValues, 0, stopValues.length);
+		System.arraycopy(forwardValues, 0, copy.forwardValues, 0, forwardValues.length);
+		return copy;
+	}
+
+	/**
+	 * Check the descriptor is complete and all values fit their fields.
+	 * @throws LibRomoRuntimeException if not
+	 */
+	void validate() {
+		int symbols = getSymbolCount();
+		if (symbols == 0 || symbols > MAX_SYMBOLS) throw new LibRomoRuntimeException(name + ": frames of " + symbols + " symbols");
+		if (count(FIELD_ADDRESS) != 1 || count(FIELD_SPEED) != 1) throw new LibRomoRuntimeException(name + ": needs an address and a speed field");
+		if (segmentEnds[0] == null || segmentEnds[1] == null) throw new LibRomoRuntimeException(name + ": symbol shapes not set");
+		for (int i = 0; i < fieldCount; i++) {
+			if (fieldKinds[i] == FIELD_CONSTANT && !fits(fieldValues[i], fieldWidths[i]))
+				throw new LibRomoRuntimeException(name + ": constant " + fieldValues[i] + " does not fit " + fieldWidths[i] + " bits");
+		}
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			if (!mapped[address]) throw new LibRomoRuntimeException(name + ": address " + address + " not mapped");
+			if (!fits(addressCodes[address], width(FIELD_ADDRESS))
+					|| !fits(speedValue(address, CommandScheduler.SPEED_MAX_FORWARD), width(FIELD_SPEED))
+					|| !fits(speedValue(address, CommandScheduler.SPEED_MAX_BACKWARD), width(FIELD_SPEED)))
+				throw new LibRomoRuntimeException(name + ": values of address " + address + " do not fit their fields");
+		}
+	}
+
+	/**
+	 * Get the bits of a frame, a symbol each.
+	 * @param address
+	 * @param speed
+	 * @return the bits, the first symbol in bit getSymbolCount() - 1
+	 */
+	long bits(int address, int speed) {
+		int addressCode = addressCodes[address];
+		int speedValue = speedValue(address, speed);
+		long bits = 0;
+		for (int i = 0; i < fieldCount; i++) {
+			int value;
+			switch (fieldKinds[i]) {
+			case FIELD_ADDRESS:
+				value = addressCode;
+				break;
+			case FIELD_SPEED:
+				value = speedValue;
+				break;
+			case FIELD_PARITY:
+				value = (Integer.bitCount(addressCode) + Integer.bitCount(speedValue) + fieldValues[i]) & 1;
+				break;
+			default:
+				value = fieldValues[i];
+			}
+			int width = fieldWidths[i];
+			if (!msbFirst) value = Integer.reverse(value) >>> (32 - width);
+			bits = bits << width | (value & ((1L << width) - 1));
+		}
+		return bits;
+	}
+
+	/**
+	 * @param bit
+	 * @return the number of segments of the symbol of the bit value
+	 */
+	int getSegmentCount(boolean bit) {
+		return segmentEnds[bit ? 1 : 0].length;
+	}
+
+	/**
+	 * @param bit
+	 * @param segment
+	 * @return the end of the segment in percent of the symbol, or CLOCK_EDGE
+	 */
+	int getSegmentEnd(boolean bit, int segment) {
+		return segmentEnds[bit ? 1 : 0][segment];
+	}
+
+	/**
+	 * @param bit
+	 * @param channel 0 for left, 1 for right
+	 * @param segment
+	 * @return the level of the channel in the segment
+	 */
+	int getLevel(boolean bit, int channel, int segment) {
+		return (channel == 0 ? leftLevels : rightLevels)[bit ? 1 : 0][segment];
+	}
+
+	private int speedValue(int address, int speed) {
+		int range = forwardValues[address] - stopValues[address];
+		//scaled and rounded half away from zero
+		int product = range * speed;
+		return stopValues[address] + (2 * product + (product < 0 ? -CommandScheduler.SPEED_MAX_FORWARD : CommandScheduler.SPEED_MAX_FORWARD))
+				/ (2 * CommandScheduler.SPEED_MAX_FORWARD);
+	}
+
+	private int count(int kind) {
+		int count = 0;
+		for (int i = 0; i < fieldCount; i++) if (fieldKinds[i] == kind) count++;
+		return count;
+	}
+
+	private int width(int kind) {
+		for (int i = 0; i < fieldCount; i++) if (fieldKinds[i] == kind) return fieldWidths[i];
+		return 0;
+	}
+
+	private static boolean fits(int value, int width) {
+		return value >= 0 && value < (1L << width);
+	}
+
+	private static int[] grow(int[] array) {
+		int[] tmp = new int[array.length * 2];
+		System.arraycopy(array, 0, tmp, 0, array.length);
+		return tmp;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,108 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+/**
+ * A compiled CommandSequence: the commands ordered by the sample they start at, relative to
+ * the start of the sequence. Plans are immutable, so a plan can be played any number of times.
+ * @author Lambertus Gorter
+ *
+ */
+public final class SequencePlan {
+	private final LinkTiming timing;
+	private final int[] addresses;
+	private final int[] speeds;
+	//positions in shorts, relative to the start of the sequence
+	private final long[] requested;
+	private final long[] starts;
+
+	SequencePlan(LinkTiming timing, int[] addresses, int[] speeds, long[] requested, long[] starts) {
+		this.timing = timing;
+		this.addresses = addresses;
+		this.speeds = speeds;
+		this.requested = requested;
+		this.starts = starts;
+	}
+
+	/**
+	 * @return the timing model of the link the plan was compiled for
+	 */
+	public LinkTiming getTiming() {
+		return timing;
+	}
+
+	/**
+	 * @return the number of commands in the plan
+	 */
+	public int size() {
+		return addresses.length;
+	}
+
+	/**
+	 * @param index
+	 * @return the motor address of the command at the index
+	 */
+	public int getAddress(int index) {
+		return addresses[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the speed of the command at the index
+	 */
+	public int getSpeed(int index) {
+		return speeds[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the sample the command at the index was requested to start at
+	 */
+	public long getRequestedSample(int index) {
+		return requested[index] / LinkTiming.CHANNELS;
+	}
+
+	/**
+	 * @param index
+	 * @return the sample the command at the index starts at, later than requested if it had to
+	 * wait for the previous command
+	 */
+	public long getStartSample(int index) {
+		return starts[index] / LinkTiming.CHANNELS;
+	}
+
+	/**
+	 * @return the number of samples from the start of the sequence until the last command ends
+	 */
+	public long getDurationSamples() {
+		if (starts.length == 0) return 0;
+		return (starts[starts.length - 1] + timing.getFrameShortSize()) / LinkTiming.CHANNELS;
+	}
+
+	long getStartShort(int index) {
+		return starts[index];
+	}
+}
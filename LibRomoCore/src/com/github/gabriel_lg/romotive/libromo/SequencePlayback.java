@@ -0,0 +1,147 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+/**
+ * A SequencePlan being played by the CommandScheduler. Reports when each command was put on
+ * the link, and allows the rest of the sequence to be cancelled.
+ * @author Lambertus Gorter
+ *
+ */
+public final class SequencePlayback {
+	private final SequencePlan plan;
+	private final long[] emissionSamples;
+	private final long[] emissionNanos;
+	//written by the worker only, the emission times of a command are set before it is counted
+	private volatile int emitted = 0;
+	private volatile boolean cancelled = false;
+	private boolean done = false;
+
+	SequencePlayback(SequencePlan plan) {
+		this.plan = plan;
+		emissionSamples = new long[plan.size()];
+		emissionNanos = new long[plan.size()];
+	}
+
+	/**
+	 * @return the plan being played
+	 */
+	public SequencePlan getPlan() {
+		return plan;
+	}
+
+	/**
+	 * Cancel the commands that have not been put on the link yet. Commands written already
+	 * play out. Does not block.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Check if the sequence was cancelled, by cancel or by the scheduler: an emergency stop,
+	 * pause, disconnect, another sequence, or leaving OutputMode.CONTINUOUS cancels it.
+	 * @return
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return true if all commands were put on the link or the sequence was cancelled
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Wait until the sequence is done.
+	 * @param timeoutMs
+	 * @return true if done, false on timeout
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean await(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long left = timeoutMs;
+		while (!done && left > 0) {
+			wait(left);
+			left = deadline - System.currentTimeMillis();
+		}
+		return done;
+	}
+
+	/**
+	 * @return the number of commands put on the link so far
+	 */
+	public int getEmittedCount() {
+		return emitted;
+	}
+
+	/**
+	 * @param index of a command put on the link
+	 * @return the sample the command actually started at, relative to the start of the sequence
+	 */
+	public long getEmissionSample(int index) {
+		checkEmitted(index);
+		return emissionSamples[index];
+	}
+
+	/**
+	 * @param index of a command put on the link
+	 * @return the time (System.nanoTime) the command started to play, as estimated from the
+	 * audio buffered ahead of it when it was written
+	 */
+	public long getEmissionNanos(int index) {
+		checkEmitted(index);
+		return emissionNanos[index];
+	}
+
+	private void checkEmitted(int index) {
+		if (index < 0 || index >= emitted) throw new LibRomoRuntimeException("Command not emitted: " + index);
+	}
+
+	/**
+	 * Record the emission of the next command. Only to be called by the worker.
+	 * @param sample
+	 * @param nanos
+	 */
+	void emitted(long sample, long nanos) {
+		int index = emitted;
+		emissionSamples[index] = sample;
+		emissionNanos[index] = nanos;
+		emitted = index + 1;
+	}
+
+	/**
+	 * Mark the sequence done. Only to be called by the worker.
+	 * @param cancel true if cancelled by the scheduler
+	 */
+	synchronized void finish(boolean cancel) {
+		if (cancel) cancelled = true;
+		done = true;
+		notifyAll();
+	}
+}
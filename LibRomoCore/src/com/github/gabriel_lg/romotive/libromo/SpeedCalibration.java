@@ -0,0 +1,298 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * Calibration of the speed response of the motors. Real motors have a dead zone, in which
+ * they do not turn at all, and respond to speeds non-linearly, so the speeds set are mapped
+ * per motor address on the speeds actually sent:
+ * <ul>
+ *  <li>The inversion flips the direction, for a motor mounted the other way around.</li>
+ *  <li>The gain curve maps the magnitude of the speed, linearly between its points. A speed
+ *  mapped to 0 stops the motor, the curve always runs from 0 to 0 up to 127 to 127.</li>
+ *  <li>The dead zone is skipped: the curved magnitudes from 1 up to 127 are scaled into the
+ *  range from the dead zone up to 127.</li>
+ *  <li>The trim is added to the magnitude, to make motors running at different speeds match.</li>
+ * </ul>
+ * A stop is always sent as a stop. The calibration is compiled into a table of 256 entries
+ * per address, which a WaveformBank folds into its frames, so sending a calibrated speed
+ * costs nothing.
+ * <p>
+ * A calibration file has a line per motor address: the address, the dead zone, the trim, 1
+ * if inverted or else 0, followed by the points of the gain curve as in:out pairs. Anything
+ * from a # to the end of the line is a comment, addresses without a line are not calibrated.
+ * For example:
+ * <pre>
+ * # address deadzone trim inverted curve
+ * 1 24 0 0 64:40
+ * 2 20 -3 0 64:40
+ * </pre>
+ * @author Lambertus Gorter
+ *
+ */
+public final class SpeedCalibration {
+	public static final int MAX_CURVE_POINTS = 8;
+
+	private static final int SPEED_MAX = CommandScheduler.SPEED_MAX_FORWARD;
+	private static final int TABLE_OFFSET = 128;
+	private static final int[] NO_POINTS = {};
+
+	private final int[] deadZones = new int[WaveformBank.ADDRESS_COUNT + 1];
+	private final int[] trims = new int[WaveformBank.ADDRESS_COUNT + 1];
+	private final boolean[] inverted = new boolean[WaveformBank.ADDRESS_COUNT + 1];
+	private final int[][] curveIn = new int[WaveformBank.ADDRESS_COUNT + 1][];
+	private final int[][] curveOut = new int[WaveformBank.ADDRESS_COUNT + 1][];
+	//per address, the speed sent for each speed set, offset by 128
+	private final byte[][] tables = new byte[WaveformBank.ADDRESS_COUNT + 1][256];
+
+	/**
+	 * Create a calibration sending every speed as it is set.
+	 */
+	public SpeedCalibration() {
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			setProfile(address, 0, 0, false, NO_POINTS, NO_POINTS);
+		}
+	}
+
+	/**
+	 * Set the calibration of a motor.
+	 * @param address the motor address (1, 2 or 3)
+	 * @param deadZone the highest magnitude at which the motor does not turn yet, 0 up to 126
+	 * @param trim added to the magnitude, -127 up to 127
+	 * @param inverted true to flip the direction
+	 * @param in the magnitudes of the points of the gain curve, increasing from 1 up to 126
+	 * @param out the magnitudes they map to, not decreasing, from 0 up to 127
+	 * @throws LibRomoRuntimeException if a value is out of range
+	 */
+	public void setProfile(int address, int deadZone, int trim, boolean inverted, int[] in, int[] out) {
+		if (address < 1 || address > WaveformBank.ADDRESS_COUNT)
+			throw new LibRomoRuntimeException("Invalid address: " + address);
+		if (deadZone < 0 || deadZone >= SPEED_MAX)
+			throw new LibRomoRuntimeException("Invalid dead zone: " + deadZone);
+		if (trim < -SPEED_MAX || trim > SPEED_MAX)
+			throw new LibRomoRuntimeException("Invalid trim: " + trim);
+		if (in.length != out.length || in.length > MAX_CURVE_POINTS)
+			throw new LibRomoRuntimeException("A curve has up to " + MAX_CURVE_POINTS + " points, each with an in and an out");
+		for (int i = 0; i < in.length; i++) {
+			if (in[i] <= (i == 0 ? 0 : in[i - 1]) || in[i] >= SPEED_MAX || out[i] < (i == 0 ? 0 : out[i - 1]) || out[i] > SPEED_MAX)
+				throw new LibRomoRuntimeException("Invalid curve point " + in[i] + ":" + out[i]);
+		}
+		deadZones[address] = deadZone;
+		trims[address] = trim;
+		this.inverted[address] = inverted;
+		curveIn[address] = in.clone();
+		curveOut[address] = out.clone();
+		for (int speed = -TABLE_OFFSET; speed < TABLE_OFFSET; speed++) {
+			tables[address][speed + TABLE_OFFSET] = (byte) calibrate(address, speed);
+		}
+	}
+
+	/**
+	 * Get the speed sent for a speed set.
+	 * @param address the motor address (1, 2 or 3)
+	 * @param speed between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD
+	 * @return the calibrated speed
+	 */
+	public int getSpeed(int address, int speed) {
+		return tables[address][speed + TABLE_OFFSET];
+	}
+
+	/**
+	 * @param address
+	 * @return the dead zone of the motor at the address
+	 */
+	public int getDeadZone(int address) {
+		return deadZones[address];
+	}
+
+	/**
+	 * @param address
+	 * @return the trim of the motor at the address
+	 */
+	public int getTrim(int address) {
+		return trims[address];
+	}
+
+	/**
+	 * @param address
+	 * @return true if the direction of the motor at the address is flipped
+	 */
+	public boolean isInverted(int address) {
+		return inverted[address];
+	}
+
+	/**
+	 * @return a copy of this calibration, not affected by later changes to either
+	 */
+	SpeedCalibration copy() {
+		SpeedCalibration copy = new SpeedCalibration();
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			copy.deadZones[address] = deadZones[address];
+			copy.trims[address] = trims[address];
+			copy.inverted[address] = inverted[address];
+			//curves are replaced as a whole, never changed
+			copy.curveIn[address] = curveIn[address];
+			copy.curveOut[address] = curveOut[address];
+			System.arraycopy(tables[address], 0, copy.tables[address], 0, tables[address].length);
+		}
+		return copy;
+	}
+
+	private int calibrate(int address, int speed) {
+		if (speed == 0) return 0;
+		int magnitude = curve(address, Math.min(Math.abs(speed), SPEED_MAX));
+		if (magnitude == 0) return 0;
+		int deadZone = deadZones[address];
+		magnitude = deadZone + (magnitude * (SPEED_MAX - deadZone) + SPEED_MAX / 2) / SPEED_MAX + trims[address];
+		magnitude = Math.max(1, Math.min(magnitude, SPEED_MAX));
+		return (speed < 0) != inverted[address] ? -magnitude : magnitude;
+	}
+
+	/**
+	 * Map a magnitude linearly between the points of the curve of the address.
+	 * @param address
+	 * @param magnitude 1 up to 127
+	 * @return
+	 */
+	private int curve(int address, int magnitude) {
+		int[] in = curveIn[address];
+		int[] out = curveOut[address];
+		int x0 = 0;
+		int y0 = 0;
+		int i = 0;
+		while (i < in.length && in[i] <= magnitude) {
+			x0 = in[i];
+			y0 = out[i++];
+		}
+		int x1 = i < in.length ? in[i] : SPEED_MAX;
+		int y1 = i < in.length ? out[i] : SPEED_MAX;
+		if (x1 == x0) return y0;
+		return y0 + ((y1 - y0) * (magnitude - x0) * 2 + (x1 - x0)) / (2 * (x1 - x0));
+	}
+
+	/**
+	 * Read a calibration file.
+	 * @param file
+	 * @return
+	 * @throws LibRomoException if the file cannot be read or is invalid
+	 */
+	public static SpeedCalibration read(File file) throws LibRomoException {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			return read(in);
+		} catch (IOException e) {
+			throw new LibRomoException(file + ": " + e.getMessage(), e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a calibration from a stream, e.g. an asset of an app. The stream is not closed.
+	 * @param in
+	 * @return
+	 * @throws IOException if the stream cannot be read, or a line is invalid
+	 */
+	public static SpeedCalibration read(InputStream in) throws IOException {
+		SpeedCalibration calibration = new SpeedCalibration();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+		String line;
+		int number = 0;
+		while ((line = reader.readLine()) != null) {
+			number++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) line = line.substring(0, comment);
+			line = line.trim();
+			if (line.length() == 0) continue;
+			String[] fields = line.split("\\s+");
+			if (fields.length < 4) throw new IOException("line " + number + ": expected address, dead zone, trim and inversion");
+			try {
+				int points = fields.length - 4;
+				int[] curveIn = new int[points];
+				int[] curveOut = new int[points];
+				for (int i = 0; i < points; i++) {
+					String[] point = fields[4 + i].split(":");
+					if (point.length != 2) throw new IOException("line " + number + ": expected in:out instead of " + fields[4 + i]);
+					curveIn[i] = Integer.parseInt(point[0]);
+					curveOut[i] = Integer.parseInt(point[1]);
+				}
+				calibration.setProfile(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+						Integer.parseInt(fields[3]) != 0, curveIn, curveOut);
+			} catch (NumberFormatException e) {
+				throw invalidLine(number, e);
+			} catch (LibRomoRuntimeException e) {
+				throw invalidLine(number, e);
+			}
+		}
+		return calibration;
+	}
+
+	//IOException(String, Throwable) is not available before Android API level 9
+	private static IOException invalidLine(int number, Exception cause) {
+		IOException e = new IOException("line " + number + ": " + cause.getMessage());
+		e.initCause(cause);
+		return e;
+	}
+
+	/**
+	 * Write the calibration to a stream, in the format read by read. The stream is not closed.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		out.write(toString().getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder("# address deadzone trim inverted curve\n");
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			text.append(address).append(' ').append(deadZones[address]).append(' ').append(trims[address]);
+			text.append(inverted[address] ? " 1" : " 0");
+			for (int i = 0; i < curveIn[address].length; i++) {
+				text.append(' ').append(curveIn[address][i]).append(':').append(curveOut[address][i]);
+			}
+			text.append('\n');
+		}
+		return text.toString();
+	}
+}
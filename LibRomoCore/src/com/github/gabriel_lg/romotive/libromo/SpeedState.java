@@ -0,0 +1,115 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+/**
+ * Packing of the speeds of all motors, and whether they still need to be sent (dirty),
+ * into a single int. This allows the speeds to be published and taken atomically, without
+ * a lock. Bits 0-7, 8-15 and 16-23 hold the speeds of address 1, 2 and 3 offset by 128,
+ * bits 24, 25 and 26 their dirty bits and bits 27, 28 and 29 their forced bits. A forced
+ * motor (always dirty as well) is to be sent even if its speed did not change.
+ * @author Lambertus Gorter
+ *
+ */
+final class SpeedState {
+	static final int DIRTY_LEFT = dirtyBit(1);
+	static final int DIRTY_RIGHT = dirtyBit(2);
+	static final int DIRTY_AUX = dirtyBit(3);
+	static final int DIRTY_ALL = DIRTY_LEFT | DIRTY_RIGHT | DIRTY_AUX;
+	static final int FORCE_ALL = DIRTY_ALL << 3;
+	static final int INITIAL = setSpeed(setSpeed(setSpeed(0, 1, 0), 2, 0), 3, 0);
+
+	private static final int SPEED_OFFSET = 128;
+
+	private SpeedState() {
+	}
+
+	/**
+	 * @param address motor address (1, 2 or 3)
+	 * @return the dirty bit of the motor at the address
+	 */
+	static int dirtyBit(int address) {
+		return 1 << (23 + address);
+	}
+
+	/**
+	 * @param motorMask a combination of CommandScheduler.MOTOR_LEFT, MOTOR_RIGHT and MOTOR_AUX
+	 * @return the dirty bits of the motors in the mask
+	 */
+	static int dirtyBits(int motorMask) {
+		return (motorMask & CommandScheduler.MOTOR_ALL) << 24;
+	}
+
+	/**
+	 * @param state
+	 * @return true if any motor is dirty
+	 */
+	static boolean isDirty(int state) {
+		return (state & DIRTY_ALL) != 0;
+	}
+
+	/**
+	 * @param state
+	 * @param address
+	 * @return true if the motor at the address is dirty
+	 */
+	static boolean isDirty(int state, int address) {
+		return (state & dirtyBit(address)) != 0;
+	}
+
+	/**
+	 * @param state
+	 * @param address
+	 * @return true if the motor at the address is forced
+	 */
+	static boolean isForced(int state, int address) {
+		return (state & (dirtyBit(address) << 3)) != 0;
+	}
+
+	/**
+	 * @param state
+	 * @param address
+	 * @return the speed of the motor at the address
+	 */
+	static int getSpeed(int state, int address) {
+		return ((state >>> shift(address)) & 0xff) - SPEED_OFFSET;
+	}
+
+	/**
+	 * @param state
+	 * @param address
+	 * @param speed between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD
+	 * @return the state with the speed of the motor at the address replaced
+	 */
+	static int setSpeed(int state, int address, int speed) {
+		int shift = shift(address);
+		return (state & ~(0xff << shift)) | ((speed + SPEED_OFFSET) << shift);
+	}
+
+	private static int shift(int address) {
+		return 8 * (address - 1);
+	}
+}
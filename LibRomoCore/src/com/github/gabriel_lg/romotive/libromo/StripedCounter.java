@@ -0,0 +1,61 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for many threads counting at the same time. Each thread counts in a stripe of its
+ * own (chosen by its id), the stripes being a cache line apart, so threads rarely contend on
+ * the same word. Reading adds up all stripes.
+ * @author Lambertus Gorter
+ *
+ */
+final class StripedCounter {
+	private static final int STRIPES = 8;
+	//longs per stripe, so stripes do not share a cache line
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * Add to the counter.
+	 * @param delta
+	 */
+	void add(long delta) {
+		int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+		cells.addAndGet(stripe * PADDING, delta);
+	}
+
+	/**
+	 * @return the count
+	 */
+	long sum() {
+		long sum = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) sum += cells.get(stripe * PADDING);
+		return sum;
+	}
+}
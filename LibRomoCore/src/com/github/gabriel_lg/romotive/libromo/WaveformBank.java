@@ -0,0 +1,285 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Immutable bank of precomputed command waveforms. Every command the Romo can be sent
+ * (3 motor addresses times 255 speeds) is encoded once when the bank is built, so sending
+ * a command comes down to looking up its frame. The frames handed out by the bank are shared
+ * and must never be modified.
+ * <p>
+ * For writing to the audio output without copying from the Java heap, the frames are also
+ * available from direct ByteBuffers. These are built on first use and, since their position
+ * and limit change when they are written, belong to a single thread.
+ * <p>
+ * The frames are encoded for a LinkTiming, its sample rate and symbol timing, following a
+ * ProtocolDescriptor. The constants below describe the default: the Romo protocol at 8000 Hz.
+ * @author Lambertus Gorter
+ *
+ */
+public final class WaveformBank {
+	public static final int SAMPLE_RATE = 8000;
+	public static final int SYMBOL_SHORT_SIZE = 16;
+	public static final int FRAME_SYMBOLS = 12;
+	public static final int FRAME_SHORT_SIZE = SYMBOL_SHORT_SIZE * FRAME_SYMBOLS;
+	public static final int ADDRESS_COUNT = 3;
+	
+	private static final int SPEED_MIN = -127;
+	private static final int SPEED_MAX = 127;
+	private static final int SPEED_COUNT = SPEED_MAX - SPEED_MIN + 1;
+	private static final short HI = Short.MAX_VALUE;
+	private static final short LO = Short.MIN_VALUE;
+
+	private final LinkTiming timing;
+	private final int frameShortSize;
+	private final short[][] frames = new short[ADDRESS_COUNT * SPEED_COUNT][];
+	private ByteBuffer directFrames;
+	private ByteBuffer[] frameBuffers;
+
+	/**
+	 * Build the bank for the default timing by encoding the frames for all addresses and speeds.
+	 */
+	public WaveformBank() {
+		this(LinkTiming.DEFAULT);
+	}
+
+	/**
+	 * Build the bank of the Romo protocol for the given timing by encoding the frames for all
+	 * addresses and speeds.
+	 * @param timing
+	 */
+	public WaveformBank(LinkTiming timing) {
+		this(timing, ProtocolDescriptor.romo());
+	}
+
+	/**
+	 * Build the bank of a protocol for the given timing by encoding the frames for all
+	 * addresses and speeds.
+	 * @param timing with the number of symbols of the frames of the protocol
+	 * @param protocol
+	 * @throws LibRomoRuntimeException if the protocol is incomplete or does not match the timing
+	 */
+	public WaveformBank(LinkTiming timing, ProtocolDescriptor protocol) {
+		this(timing, protocol, new SpeedCalibration());
+	}
+
+	/**
+	 * Build the bank of a protocol for the given timing by encoding the frames for all
+	 * addresses and speeds, each sending the speed as calibrated.
+	 * @param timing with the number of symbols of the frames of the protocol
+	 * @param protocol
+	 * @param calibration
+	 * @throws LibRomoRuntimeException if the protocol is incomplete or does not match the timing
+	 */
+	public WaveformBank(LinkTiming timing, ProtocolDescriptor protocol, SpeedCalibration calibration) {
+		protocol.validate();
+		if (timing.getFrameSymbols() != protocol.getSymbolCount())
+			throw new LibRomoRuntimeException(protocol + " has frames of " + protocol.getSymbolCount() + " symbols, the timing of " + timing.getFrameSymbols());
+		this.timing = timing;
+		frameShortSize = timing.getFrameShortSize();
+		short[] one = symbols(protocol, true);
+		short[] zero = symbols(protocol, false);
+		for (int address = 1; address <= ADDRESS_COUNT; address++) {
+			for (int speed = SPEED_MIN; speed <= SPEED_MAX; speed++) {
+				frames[index(address, speed)] = encode(protocol.bits(address, calibration.getSpeed(address, speed)), one, zero);
+			}
+		}
+	}
+
+	/**
+	 * @return the timing the frames are encoded for
+	 */
+	public LinkTiming getTiming() {
+		return timing;
+	}
+
+	/**
+	 * Get the frame commanding the motor at the given address at the given speed.
+	 * The returned array is shared, do not modify it.
+	 * @param address motor address (1, 2 or 3)
+	 * @param speed speed between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD
+	 * @return the frame
+	 */
+	public short[] getFrame(int address, int speed) {
+		return frames[index(address, speed)];
+	}
+
+	/**
+	 * Get the frame commanding the motor at the given address at the given speed, as a direct
+	 * buffer in native byte order, ready to be written from its position to its limit.
+	 * The buffer is shared, do not modify its content, and only use it from a single thread.
+	 * @param address motor address (1, 2 or 3)
+	 * @param speed speed between SPEED_MAX_BACKWARD and SPEED_MAX_FORWARD
+	 * @return the frame, with its position at the start and its limit at the end of the frame
+	 */
+	public ByteBuffer getFrameBuffer(int address, int speed) {
+		if (frameBuffers == null) buildDirectFrames();
+		ByteBuffer frame = frameBuffers[index(address, speed)];
+		frame.clear();
+		return frame;
+	}
+
+	private void buildDirectFrames() {
+		directFrames = ByteBuffer.allocateDirect(frames.length * frameShortSize * 2).order(ByteOrder.nativeOrder());
+		directFrames.asShortBuffer().put(concat(frames, frameShortSize));
+		frameBuffers = new ByteBuffer[frames.length];
+		for (int i = 0; i < frames.length; i++) {
+			directFrames.limit((i + 1) * frameShortSize * 2);
+			directFrames.position(i * frameShortSize * 2);
+			frameBuffers[i] = directFrames.slice().order(ByteOrder.nativeOrder());
+		}
+		directFrames.clear();
+	}
+
+	private static short[] concat(short[][] frames, int frameShortSize) {
+		short[] all = new short[frames.length * frameShortSize];
+		for (int i = 0; i < frames.length; i++) System.arraycopy(frames[i], 0, all, i * frameShortSize, frameShortSize);
+		return all;
+	}
+
+	/**
+	 * Render the given commands, each followed by a gap of silence, into the given direct
+	 * buffer. The audio is copied within native memory from the direct frames of the bank.
+	 * The buffer is cleared first and flipped after rendering, so it is ready to be written.
+	 * Only to be used from the thread using the direct frames.
+	 * @param addresses
+	 * @param speeds
+	 * @param count the number of commands to render
+	 * @param gapShorts the length of a gap in shorts
+	 * @param trailingGap true to follow the last command by a gap as well
+	 * @param buffer the buffer to render into, in native byte order and large enough
+	 * @return the number of shorts rendered
+	 */
+	public int render(int[] addresses, int[] speeds, int count, int gapShorts, boolean trailingGap, ByteBuffer buffer) {
+		int gaps = trailingGap ? count : count - 1;
+		buffer.clear();
+		for (int i = 0; i < count; i++) {
+			buffer.put(getFrameBuffer(addresses[i], speeds[i]));
+			if (i < gaps) {
+				for (int n = 0; n < gapShorts; n++) buffer.putShort((short) 0);
+			}
+		}
+		buffer.flip();
+		return buffer.limit() / 2;
+	}
+
+	/**
+	 * Render the given commands, each followed by a gap of silence, into the given buffer.
+	 * @param addresses
+	 * @param speeds
+	 * @param count the number of commands to render
+	 * @param gapShorts the length of a gap in shorts
+	 * @param trailingGap true to follow the last command by a gap as well
+	 * @param buffer the buffer to render into, must be large enough
+	 * @return the number of shorts rendered
+	 */
+	public int render(int[] addresses, int[] speeds, int count, int gapShorts, boolean trailingGap, short[] buffer) {
+		int gaps = trailingGap ? count : count - 1;
+		int offset = 0;
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(getFrame(addresses[i], speeds[i]), 0, buffer, offset, frameShortSize);
+			offset += frameShortSize;
+			if (i < gaps) {
+				Arrays.fill(buffer, offset, offset + gapShorts, (short) 0);
+				offset += gapShorts;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Get the size of the buffer needed to render the given number of commands.
+	 * @param count
+	 * @param gapShorts
+	 * @param trailingGap
+	 * @return the size in shorts
+	 */
+	public int renderSize(int count, int gapShorts, boolean trailingGap) {
+		return count * frameShortSize + (trailingGap ? count : count - 1) * gapShorts;
+	}
+
+	private static int index(int address, int speed) {
+		return (address - 1) * SPEED_COUNT + speed - SPEED_MIN;
+	}
+
+	/**
+	 * Encode a frame from its bits, taking the symbol of each bit from the frame of its value.
+	 * @param bits the first symbol in the highest bit
+	 * @param one a frame of 1 symbols
+	 * @param zero a frame of 0 symbols
+	 * @return the encoded frame
+	 */
+	private short[] encode(long bits, short[] one, short[] zero) {
+		short[] sample = new short[frameShortSize];
+		int symbols = timing.getFrameSymbols();
+		for (int symbol = 0; symbol < symbols; symbol++) {
+			boolean bit = (bits & (1L << (symbols - 1 - symbol))) != 0;
+			int from = timing.getSymbolStart(symbol) * LinkTiming.CHANNELS;
+			int to = timing.getSymbolStart(symbol + 1) * LinkTiming.CHANNELS;
+			System.arraycopy(bit ? one : zero, from, sample, from, to - from);
+		}
+		return sample;
+	}
+
+	/**
+	 * Encode a frame of which all symbols carry the same bit, in the shape the protocol
+	 * gives the symbol of the bit.
+	 * @param protocol
+	 * @param bit
+	 * @return the frame
+	 * @throws LibRomoRuntimeException if the segments of the symbol are out of order
+	 */
+	private short[] symbols(ProtocolDescriptor protocol, boolean bit) {
+		short[] sample = new short[frameShortSize];
+		int segments = protocol.getSegmentCount(bit);
+		for (int symbol = 0; symbol < timing.getFrameSymbols(); symbol++) {
+			int from = timing.getSymbolStart(symbol);
+			for (int segment = 0; segment < segments; segment++) {
+				int end = protocol.getSegmentEnd(bit, segment);
+				int to = end == ProtocolDescriptor.CLOCK_EDGE ? timing.getClockEdge(symbol) : timing.getSample(symbol, end);
+				if (to < from) throw new LibRomoRuntimeException(protocol + ": segments of symbol " + (bit ? 1 : 0) + " out of order");
+				short left = level(protocol.getLevel(bit, 0, segment));
+				short right = level(protocol.getLevel(bit, 1, segment));
+				for (int i = from; i < to; i++) {
+					sample[i * LinkTiming.CHANNELS] = left;
+					sample[i * LinkTiming.CHANNELS + 1] = right;
+				}
+				from = to;
+			}
+		}
+		return sample;
+	}
+
+	private static short level(int level) {
+		if (level == ProtocolDescriptor.LEVEL_HI) return HI;
+		if (level == ProtocolDescriptor.LEVEL_LO) return LO;
+		return 0;
+	}
+}
@@ -0,0 +1,75 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Checks what a CaptureSink captures of the buffers written to it.
+ * @author Lambertus Gorter
+ *
+ */
+public class CaptureSinkTest {
+	private static final short[] AUDIO = { 1, -1, 300, -300, Short.MAX_VALUE, Short.MIN_VALUE };
+
+	private static ByteBuffer buffer(ByteOrder order) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(AUDIO.length * 2 + 2).order(order);
+		buffer.putShort((short) 7);
+		for (short value : AUDIO) buffer.putShort(value);
+		buffer.flip();
+		buffer.position(2);
+		return buffer;
+	}
+
+	@Test
+	public void capturesBuffersOfEitherByteOrder() {
+		ByteOrder[] orders = { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN };
+		for (ByteOrder order : orders) {
+			CaptureSink sink = new CaptureSink(WaveformBank.SAMPLE_RATE);
+			ByteBuffer buffer = buffer(order);
+			assertEquals(AUDIO.length * 2, sink.write(buffer, true));
+			assertEquals(0, buffer.remaining());
+			sink.write(AUDIO, 2, 2);
+			assertArrayEquals(new short[] { 1, -1, 300, -300, Short.MAX_VALUE, Short.MIN_VALUE, 300, -300 }, sink.toArray());
+		}
+	}
+
+	@Test
+	public void nonBlockingWriteTakesWhatTheBufferHolds() {
+		//a buffer of 1 ms holds 8 frames at 8 kHz
+		CaptureSink sink = new CaptureSink(WaveformBank.SAMPLE_RATE, true, 1);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(40 * 2).order(ByteOrder.nativeOrder());
+		assertEquals(16 * 2, sink.write(buffer, false));
+		assertEquals(16, sink.size());
+		assertEquals(24 * 2, buffer.remaining());
+	}
+}
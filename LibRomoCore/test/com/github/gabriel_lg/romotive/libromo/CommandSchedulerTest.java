@@ -0,0 +1,223 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Runs the CommandScheduler on a real time CaptureSink and checks what the Romo would make of
+ * the captured audio, decoded by the FrameDecoder: the order of the frames and the gaps
+ * between them in each OutputMode, and the frames of an emergency stop.
+ * @author Lambertus Gorter
+ *
+ */
+public class CommandSchedulerTest {
+	private static final int SAMPLE_RATE = 8000;
+	private static final int GAP_MS = 5;
+	private static final int GAP_SAMPLES = GAP_MS * SAMPLE_RATE / 1000;
+	private static final long TIMEOUT_NS = 5000000000L;
+
+	/**
+	 * A frame decoded from the capture.
+	 */
+	private static final class Frame {
+		final int address;
+		final int speed;
+		final long gap;
+
+		Frame(int address, int speed, long gap) {
+			this.address = address;
+			this.speed = speed;
+			this.gap = gap;
+		}
+
+		@Override
+		public String toString() {
+			return address + ":" + speed;
+		}
+	}
+
+	private static List<Frame> decode(CaptureSink sink) {
+		return decode(sink, false);
+	}
+
+	/**
+	 * @param sink
+	 * @param allowViolations whether a frame may have been cut off, such as the frame being
+	 * written while the capture is decoded
+	 * @return the frames captured
+	 */
+	private static List<Frame> decode(CaptureSink sink, boolean allowViolations) {
+		final List<Frame> frames = new ArrayList<Frame>();
+		final List<Long> violations = new ArrayList<Long>();
+		FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+			@Override
+			public void onFrame(int address, int speed, long startSample, long gapSamples) {
+				frames.add(new Frame(address, speed, gapSamples));
+			}
+
+			@Override
+			public void onViolation(int violation, long startSample) {
+				violations.add(startSample);
+			}
+		});
+		short[] capture = sink.toArray();
+		decoder.decode(capture, 0, capture.length);
+		decoder.flush();
+		if (!allowViolations) assertEquals("violations at " + violations, 0, violations.size());
+		return frames;
+	}
+
+	/**
+	 * Wait until the capture holds the given number of frames.
+	 * @param sink
+	 * @param count
+	 * @return the frames captured
+	 * @throws InterruptedException
+	 */
+	private static List<Frame> awaitFrames(CaptureSink sink, int count) throws InterruptedException {
+		long deadline = System.nanoTime() + TIMEOUT_NS;
+		List<Frame> frames;
+		while ((frames = decode(sink, true)).size() < count) {
+			assertTrue("waiting for " + count + " frames, captured " + frames, System.nanoTime() - deadline < 0);
+			Thread.sleep(5);
+		}
+		return frames;
+	}
+
+	private static CommandScheduler start(CaptureSink sink, OutputMode mode) throws InterruptedException {
+		CommandScheduler scheduler = new CommandScheduler(sink);
+		scheduler.setOutputMode(mode);
+		scheduler.setInterCommandGap(GAP_MS);
+		scheduler.start();
+		scheduler.setConnected(true);
+		//the stops sent on taking control
+		awaitFrames(sink, 3);
+		return scheduler;
+	}
+
+	/**
+	 * Pause the scheduler, wait for the stops it sends to be played and destroy it.
+	 * @param scheduler
+	 * @param sink
+	 * @param count the number of frames captured once the stops are sent
+	 * @throws InterruptedException
+	 */
+	private static void stop(CommandScheduler scheduler, CaptureSink sink, int count) throws InterruptedException {
+		scheduler.pause();
+		awaitFrames(sink, count);
+		//nothing is flushed from the capture once it is played
+		assertTrue(sink.awaitPlayed(TIMEOUT_NS));
+		scheduler.destroy();
+	}
+
+	private static List<Frame> playSpeeds(OutputMode mode) throws InterruptedException {
+		CaptureSink sink = new CaptureSink(SAMPLE_RATE, true, 40);
+		CommandScheduler scheduler = start(sink, mode);
+		scheduler.setLeftRightSpeed(50, -50);
+		awaitFrames(sink, 5);
+		scheduler.setSpeeds(-127, 127, 1);
+		awaitFrames(sink, 8);
+		stop(scheduler, sink, 11);
+		return decode(sink);
+	}
+
+	private static void assertSpeedsInOrder(OutputMode mode, List<Frame> frames) {
+		//stops sent on taking control, the speeds set, and stops sent on pause
+		assertEquals(mode.toString(), "[1:0, 2:0, 3:0, 1:50, 2:-50, 1:-127, 2:127, 3:1, 1:0, 2:0, 3:0]", frames.toString());
+	}
+
+	//the frames that were sent together, following another frame of the same batch
+	private static final int[] BATCHED_FRAMES = { 1, 2, 4, 6, 7, 9, 10 };
+
+	@Test
+	public void commandModeSendsFramesInOrder() throws InterruptedException {
+		List<Frame> frames = playSpeeds(OutputMode.COMMAND);
+		assertSpeedsInOrder(OutputMode.COMMAND, frames);
+		//each command is written on its own, the gap is slept for
+		for (int i : BATCHED_FRAMES) assertTrue("gap " + frames.get(i).gap, frames.get(i).gap >= GAP_SAMPLES - 1);
+	}
+
+	@Test
+	public void batchedModeRendersGapsExactly() throws InterruptedException {
+		List<Frame> frames = playSpeeds(OutputMode.BATCHED);
+		assertSpeedsInOrder(OutputMode.BATCHED, frames);
+		for (int i : BATCHED_FRAMES) assertEquals(GAP_SAMPLES, frames.get(i).gap);
+	}
+
+	@Test
+	public void continuousModeRendersGapsExactly() throws InterruptedException {
+		List<Frame> frames = playSpeeds(OutputMode.CONTINUOUS);
+		assertSpeedsInOrder(OutputMode.CONTINUOUS, frames);
+		for (int i : BATCHED_FRAMES) assertEquals(GAP_SAMPLES, frames.get(i).gap);
+	}
+
+	@Test
+	public void pauseCountsStopFrames() throws InterruptedException {
+		CaptureSink sink = new CaptureSink(SAMPLE_RATE, true, 40);
+		CommandScheduler scheduler = start(sink, OutputMode.BATCHED);
+		stop(scheduler, sink, 6);
+		LinkStatistics statistics = scheduler.getLinkStatistics();
+		assertEquals(6, statistics.getEmitted());
+		assertEquals(3, statistics.getStopFrames());
+		assertEquals(0, statistics.getEmergencyStopFrames());
+	}
+
+	@Test
+	public void emergencyStopSendsStopFramesBackToBack() throws InterruptedException {
+		for (OutputMode mode : OutputMode.values()) {
+			CaptureSink sink = new CaptureSink(SAMPLE_RATE, true, 40);
+			CommandScheduler scheduler = start(sink, mode);
+			scheduler.setSpeeds(100, -100, 10);
+			awaitFrames(sink, 4);
+			scheduler.emergencyStop();
+			//the latency is recorded once the stop frames are written
+			long deadline = System.nanoTime() + TIMEOUT_NS;
+			while (scheduler.getLatencyStats().getEmergencyStopHistogram().getCount() == 0) {
+				assertTrue(mode + ": waiting for the emergency stop", System.nanoTime() - deadline < 0);
+				Thread.sleep(5);
+			}
+			//the emergency stops come last, nothing is flushed once they are written
+			int count = decode(sink, true).size();
+			//and are followed by the stops sent on pause
+			stop(scheduler, sink, count + 3);
+			assertEquals(1, scheduler.getLatencyStats().getEmergencyStopHistogram().getCount());
+			assertEquals(3, scheduler.getLinkStatistics().getEmergencyStopFrames());
+			List<Frame> stops = decode(sink, true).subList(count - 3, count);
+			assertEquals(mode.toString(), "[1:0, 2:0, 3:0]", stops.toString());
+			//two symbols of silence let the Romo drop a frame that was cut off
+			assertTrue(mode + ": gap " + stops.get(0).gap, stops.get(0).gap >= LinkTiming.DEFAULT.getSymbolStart(2));
+			assertEquals(0, stops.get(1).gap);
+			assertEquals(0, stops.get(2).gap);
+		}
+	}
+}
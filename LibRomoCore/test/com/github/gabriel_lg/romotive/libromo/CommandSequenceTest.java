@@ -0,0 +1,85 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the order and placement of the commands of a compiled CommandSequence.
+ * @author Lambertus Gorter
+ *
+ */
+public class CommandSequenceTest {
+
+	private static String order(SequencePlan plan) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < plan.size(); i++) {
+			builder.append(plan.getAddress(i)).append(':').append(plan.getSpeed(i)).append(' ');
+		}
+		return builder.toString().trim();
+	}
+
+	@Test
+	public void sortsByTimeKeepingTheOrderAdded() {
+		CommandSequence sequence = new CommandSequence();
+		sequence.add(1, 30, 200000);
+		sequence.add(1, 10, 0);
+		sequence.add(2, 20, 200000);
+		sequence.add(3, 40, 100000);
+		sequence.add(2, 50, 0);
+		assertEquals("1:10 2:50 3:40 1:30 2:20", order(sequence.compile(LinkTiming.DEFAULT, 0)));
+	}
+
+	@Test
+	public void longTimelinesOfManyCommandsKeepTheirOrder() {
+		//the time in microseconds times the number of commands does not fit a long
+		CommandSequence sequence = new CommandSequence();
+		long start = 200000000000000L;
+		int count = 50000;
+		for (int i = count - 1; i >= 0; i--) sequence.add(1 + i % 3, i % 100, start + i * 1000L);
+		SequencePlan plan = sequence.compile(LinkTiming.DEFAULT, 0);
+		for (int i = 0; i < count; i++) {
+			assertEquals(1 + i % 3, plan.getAddress(i));
+			assertEquals(i % 100, plan.getSpeed(i));
+			//a ms apart, the frames of 12 ms follow each other back to back
+			if (i > 0) assertEquals(plan.getStartSample(i - 1) + 12 * 8, plan.getStartSample(i));
+		}
+	}
+
+	@Test
+	public void delaysCommandsThatWouldOverlap() {
+		CommandSequence sequence = new CommandSequence();
+		sequence.add(1, 10, 0);
+		sequence.add(2, 10, 1000);
+		SequencePlan plan = sequence.compile(LinkTiming.DEFAULT, 2);
+		assertEquals(0, plan.getStartSample(0));
+		//a frame of 12 ms and a gap of 2 ms at 8 kHz
+		assertEquals((12 + 2) * 8, plan.getStartSample(1));
+		assertEquals(8, plan.getRequestedSample(1));
+	}
+}
@@ -0,0 +1,71 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the playback head of a FileSink that is not real time.
+ * @author Lambertus Gorter
+ *
+ */
+public class FileSinkTest {
+	private File file;
+	private FileSink sink;
+
+	@Before
+	public void open() throws IOException, LibRomoException {
+		file = File.createTempFile("filesink", ".pcm");
+		sink = new FileSink(file, 8000, false);
+	}
+
+	@After
+	public void close() {
+		sink.release();
+		file.delete();
+	}
+
+	@Test
+	public void headCountsFromPlay() {
+		sink.play();
+		sink.write(new short[20], 0, 20);
+		assertEquals(10, sink.getPlaybackHeadPosition());
+		sink.pause();
+		assertEquals(0, sink.getPlaybackHeadPosition());
+		sink.play();
+		assertEquals(0, sink.getPlaybackHeadPosition());
+		sink.write(new short[8], 0, 8);
+		assertEquals(4, sink.getPlaybackHeadPosition());
+		assertEquals(14 * 4, file.length());
+	}
+}
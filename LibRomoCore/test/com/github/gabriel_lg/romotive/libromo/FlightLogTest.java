@@ -0,0 +1,162 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Checks dumps of the FlightRecorder are read back as written.
+ * @author Lambertus Gorter
+ *
+ */
+public class FlightLogTest {
+
+	private static FlightLog dumpAndRead(FlightRecorder recorder) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		recorder.dump(out);
+		return FlightLog.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	@Test
+	public void dumpIsReadBack() throws IOException {
+		LinkTiming timing = new LinkTiming(48000, 250, 30);
+		FlightRecorder recorder = new FlightRecorder(16, timing);
+		recorder.setInterCommandGap(12);
+		long start = System.nanoTime();
+		recorder.record(start + 1000000, 1, 50, FlightRecorder.CAUSE_SET);
+		recorder.record(start + 1000000, 2, -50, FlightRecorder.CAUSE_SET);
+		recorder.record(start + 2500000, 3, 127, FlightRecorder.CAUSE_RAMP);
+		recorder.record(start + 4000000, 0, 0, FlightRecorder.CAUSE_DISCONNECT_STOP);
+		FlightLog log = dumpAndRead(recorder);
+		assertEquals(timing, log.getTiming());
+		assertEquals(12, log.getInterCommandGap());
+		assertEquals(0, log.getLost());
+		assertEquals(4, log.size());
+		assertEquals(2, log.getAddress(1));
+		assertEquals(-50, log.getSpeed(1));
+		assertEquals(FlightRecorder.CAUSE_SET, log.getCause(1));
+		assertEquals(log.getTimeMicros(0), log.getTimeMicros(1));
+		assertEquals(1500, log.getTimeMicros(2) - log.getTimeMicros(1));
+		assertEquals(127, log.getSpeed(2));
+		assertEquals(FlightRecorder.CAUSE_RAMP, log.getCause(2));
+		assertEquals(0, log.getAddress(3));
+		assertEquals("disconnect-stop", FlightLog.getCauseName(log.getCause(3)));
+	}
+
+	@Test
+	public void overwrittenRecordsAreCountedAsLost() throws IOException {
+		FlightRecorder recorder = new FlightRecorder(4);
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) recorder.record(start + i * 1000L, 1, i, FlightRecorder.CAUSE_REFRESH);
+		FlightLog log = dumpAndRead(recorder);
+		assertEquals(10, recorder.getRecordCount());
+		//the slot of the next record may be written while dumping, a full ring dumps one less
+		assertEquals(7, log.getLost());
+		assertEquals(3, log.size());
+		assertEquals(7, log.getSpeed(0));
+		assertEquals(9, log.getSpeed(2));
+	}
+
+	@Test
+	public void snapshotWhileRecordingKeepsWhatWasNotOverwritten() throws InterruptedException {
+		//the writer laps the small ring many times while a snapshot copies it
+		final FlightRecorder recorder = new FlightRecorder(4);
+		final long until = System.nanoTime() + 200000000L;
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				for (long i = 0; System.nanoTime() - until < 0; i++) {
+					recorder.record(System.nanoTime(), 1, (int) (i % 100), FlightRecorder.CAUSE_REFRESH);
+				}
+			}
+		};
+		writer.start();
+		while (writer.isAlive()) {
+			FlightLog log = recorder.snapshot();
+			assertTrue(log.size() < recorder.getCapacity());
+			assertTrue(log.getLost() + log.size() <= recorder.getRecordCount());
+			for (int i = 1; i < log.size(); i++) assertEquals((log.getSpeed(i - 1) + 1) % 100, log.getSpeed(i));
+		}
+		writer.join();
+	}
+
+	@Test
+	public void firstVersionIsReadWithDefaultTiming() throws IOException {
+		//wall clock 5, nothing lost, a record 4 us in: address 1, cause set, speed 20
+		byte[] dump = { 'R', 'O', 'M', 'O', 'F', 'R', 1, 5, 0, 1, 8, 1, (byte) (128 + 20) };
+		FlightLog log = FlightLog.read(new ByteArrayInputStream(dump));
+		assertEquals(LinkTiming.DEFAULT, log.getTiming());
+		assertEquals(0, log.getInterCommandGap());
+		assertEquals(5, log.getWallClockMillis());
+		assertEquals(1, log.size());
+		assertEquals(4, log.getTimeMicros(0));
+		assertEquals(1, log.getAddress(0));
+		assertEquals(20, log.getSpeed(0));
+	}
+
+	@Test
+	public void otherFilesAreRejected() throws IOException {
+		try {
+			FlightLog.read(new ByteArrayInputStream("RIFF....".getBytes("US-ASCII")));
+			fail();
+		} catch (IOException e) {
+			assertEquals("Not a flight recorder dump", e.getMessage());
+		}
+		try {
+			FlightLog.read(new ByteArrayInputStream(new byte[] { 'R', 'O', 'M', 'O', 'F', 'R', 9 }));
+			fail();
+		} catch (IOException e) {
+			assertEquals("Unsupported version: 9", e.getMessage());
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void corruptRecordCountRunsOutOfRecords() throws IOException {
+		//version 1, wall clock 5, nothing lost, Integer.MAX_VALUE records, one of them present
+		byte[] dump = { 'R', 'O', 'M', 'O', 'F', 'R', 1, 5, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 7, 8, 1,
+				(byte) (128 + 20) };
+		FlightLog.read(new ByteArrayInputStream(dump));
+	}
+
+	@Test(expected = EOFException.class)
+	public void truncatedDumpIsRejected() throws IOException {
+		FlightRecorder recorder = new FlightRecorder(4);
+		recorder.record(System.nanoTime(), 1, 0, FlightRecorder.CAUSE_SET);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		recorder.dump(out);
+		byte[] dump = out.toByteArray();
+		FlightLog.read(new ByteArrayInputStream(dump, 0, dump.length - 1));
+	}
+}
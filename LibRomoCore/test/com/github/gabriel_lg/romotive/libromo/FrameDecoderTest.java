@@ -0,0 +1,115 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the FrameDecoder on audio rendered by the WaveformBank.
+ * @author Lambertus Gorter
+ *
+ */
+public class FrameDecoderTest {
+
+	/**
+	 * Collects what the decoder finds as text.
+	 */
+	private static final class Collector implements FrameDecoder.Listener {
+		final List<String> frames = new ArrayList<String>();
+		final List<Integer> violations = new ArrayList<Integer>();
+
+		@Override
+		public void onFrame(int address, int speed, long startSample, long gapSamples) {
+			frames.add(address + ":" + speed + "@" + startSample + "+" + gapSamples);
+		}
+
+		@Override
+		public void onViolation(int violation, long startSample) {
+			violations.add(violation);
+		}
+	}
+
+	private static Collector decode(LinkTiming timing, short[] audio, int chunkShorts) {
+		Collector collector = new Collector();
+		FrameDecoder decoder = new FrameDecoder(timing, collector);
+		for (int i = 0; i < audio.length; i += chunkShorts) {
+			decoder.decode(audio, i, Math.min(chunkShorts, audio.length - i));
+		}
+		decoder.flush();
+		return collector;
+	}
+
+	@Test
+	public void decodesEverySpeedOfEveryMotor() {
+		WaveformBank bank = new WaveformBank();
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			for (int speed = -127; speed <= 127; speed++) {
+				Collector collector = decode(LinkTiming.DEFAULT, bank.getFrame(address, speed), WaveformBank.FRAME_SHORT_SIZE);
+				assertEquals("[" + address + ":" + speed + "@0+-1]", collector.frames.toString());
+				assertEquals(0, collector.violations.size());
+			}
+		}
+	}
+
+	@Test
+	public void measuresGapsInChunksOfAnySize() {
+		WaveformBank bank = new WaveformBank();
+		int[] addresses = { 1, 2, 3 };
+		int[] speeds = { 5, -5, 127 };
+		short[] audio = new short[bank.renderSize(3, 80, false)];
+		bank.render(addresses, speeds, 3, 80, false, audio);
+		//a frame is 96 samples, followed by a gap of 40
+		String expected = "[1:5@0+-1, 2:-5@136+40, 3:127@272+40]";
+		assertEquals(expected, decode(LinkTiming.DEFAULT, audio, audio.length).frames.toString());
+		assertEquals(expected, decode(LinkTiming.DEFAULT, audio, 7).frames.toString());
+	}
+
+	@Test
+	public void dropsAFrameCutOff() {
+		WaveformBank bank = new WaveformBank();
+		short[] frame = bank.getFrame(1, 40);
+		short[] audio = new short[frame.length / 2 + 64 + frame.length];
+		System.arraycopy(frame, 0, audio, 0, frame.length / 2);
+		System.arraycopy(frame, 0, audio, frame.length / 2 + 64, frame.length);
+		Collector collector = decode(LinkTiming.DEFAULT, audio, audio.length);
+		assertEquals("[" + FrameDecoder.VIOLATION_TRUNCATED + "]", collector.violations.toString());
+		assertEquals(1, collector.frames.size());
+	}
+
+	@Test
+	public void decodesOtherTimings() {
+		LinkTiming timing = new LinkTiming(48000, 250, 30);
+		WaveformBank bank = new WaveformBank(timing);
+		Collector collector = decode(timing, bank.getFrame(2, -100), 1000);
+		assertEquals("[2:-100@0+-1]", collector.frames.toString());
+		assertEquals(0, collector.violations.size());
+	}
+}
@@ -0,0 +1,96 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Checks the profile file format and applying a profile to the scheduler.
+ * @author Lambertus Gorter
+ *
+ */
+public class LinkProfileTest {
+
+	private static LinkProfile read(String text) throws IOException {
+		return LinkProfile.read(new ByteArrayInputStream(text.getBytes("US-ASCII")));
+	}
+
+	@Test
+	public void writeAndReadBack() throws IOException {
+		LinkProfile profile = new LinkProfile(new LinkTiming(48000, 500, 40), OutputMode.CONTINUOUS, 4, 500);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		profile.write(out);
+		LinkProfile read = LinkProfile.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(profile.getTiming(), read.getTiming());
+		assertEquals(OutputMode.CONTINUOUS, read.getOutputMode());
+		assertEquals(4, read.getInterCommandGap());
+		assertEquals(500, read.getRefreshInterval());
+	}
+
+	@Test
+	public void settingsLeftOutKeepTheDefaults() throws IOException {
+		LinkProfile profile = read("# tuned\ninterCommandGapMs=3\n");
+		assertEquals(LinkTiming.DEFAULT, profile.getTiming());
+		assertEquals(OutputMode.COMMAND, profile.getOutputMode());
+		assertEquals(3, profile.getInterCommandGap());
+		assertEquals(0, profile.getRefreshInterval());
+	}
+
+	@Test
+	public void invalidSettingNamesTheKey() throws IOException {
+		String[] invalid = { "refreshIntervalMs=soon", "outputMode=STREAM", "interCommandGapMs=-1", "sampleRate=100" };
+		for (String text : invalid) {
+			try {
+				read(text);
+				fail(text);
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getCause() != null);
+			}
+		}
+	}
+
+	@Test
+	public void applyRequiresTheTimingOfTheScheduler() {
+		CommandScheduler scheduler = new CommandScheduler(new CaptureSink(WaveformBank.SAMPLE_RATE));
+		new LinkProfile(LinkTiming.DEFAULT, OutputMode.BATCHED, 2, 0).apply(scheduler);
+		assertEquals(OutputMode.BATCHED, scheduler.getOutputMode());
+		try {
+			new LinkProfile(new LinkTiming(48000), OutputMode.CONTINUOUS, 2, 0).apply(scheduler);
+			fail();
+		} catch (LibRomoRuntimeException e) {
+			assertEquals(OutputMode.BATCHED, scheduler.getOutputMode());
+		}
+		scheduler.destroy();
+	}
+}
@@ -0,0 +1,134 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the dead reckoning through changes of speed queued ahead of the audio.
+ * @author Lambertus Gorter
+ *
+ */
+public class OdometryTest {
+	private static final long SECOND = 1000000000L;
+	private static final double DELTA = 1e-6;
+
+	@Test
+	public void integratesThroughQueuedChanges() {
+		Odometry odometry = new Odometry(120, 300, 300);
+		Odometry.Pose pose = new Odometry.Pose();
+		//well ahead of now, so nothing is folded yet
+		long start = System.nanoTime() + 10 * SECOND;
+		odometry.emitted(1, 127, start);
+		odometry.emitted(2, 127, start);
+		odometry.emitted(1, 0, start + SECOND);
+		odometry.emitted(2, 0, start + SECOND);
+		odometry.getPose(pose, start + SECOND / 2);
+		assertEquals(150, pose.getX(), DELTA);
+		odometry.getPose(pose, start + 3 * SECOND);
+		assertEquals(300, pose.getX(), DELTA);
+		assertEquals(0, pose.getY(), DELTA);
+		assertEquals(0, pose.getLinearVelocity(), DELTA);
+	}
+
+	@Test
+	public void spinsAroundCenter() {
+		Odometry odometry = new Odometry(120, 300, 300);
+		Odometry.Pose pose = new Odometry.Pose();
+		long start = System.nanoTime() + 10 * SECOND;
+		odometry.emitted(1, -127, start);
+		odometry.emitted(2, 127, start);
+		//600 mm/s apart over a 120 mm base: 5 rad/s
+		odometry.getPose(pose, start + SECOND / 10);
+		assertEquals(0.5, pose.getHeading(), DELTA);
+		assertEquals(0, pose.getX(), DELTA);
+		assertEquals(5, pose.getAngularVelocity(), DELTA);
+	}
+
+	@Test
+	public void earlierCommandDropsQueuedChanges() {
+		Odometry odometry = new Odometry(120, 300, 300);
+		Odometry.Pose pose = new Odometry.Pose();
+		long start = System.nanoTime() + 10 * SECOND;
+		odometry.emitted(1, 127, start);
+		odometry.emitted(2, 127, start);
+		odometry.emitted(1, 0, start + SECOND);
+		odometry.emitted(2, 0, start + SECOND);
+		//an emergency stop dropped the audio after half a second
+		odometry.emitted(1, 0, start + SECOND / 2);
+		odometry.emitted(2, 0, start + SECOND / 2);
+		odometry.getPose(pose, start + 3 * SECOND);
+		assertEquals(150, pose.getX(), DELTA);
+	}
+
+	@Test
+	public void commandsBeforeThePoseTakeEffectAtIt() {
+		Odometry odometry = new Odometry(120, 300, 300);
+		Odometry.Pose pose = new Odometry.Pose();
+		//in the past, so the changes are folded into the pose
+		long start = System.nanoTime() - 10 * SECOND;
+		odometry.emitted(1, 127, start);
+		odometry.emitted(2, 127, start);
+		odometry.emitted(1, 0, start + SECOND);
+		odometry.emitted(2, 0, start + SECOND);
+		odometry.getPose(pose, start + SECOND);
+		assertEquals(300, pose.getX(), DELTA);
+		//estimated to take effect before the pose, one after another
+		odometry.emitted(1, -127, start + SECOND / 2);
+		odometry.emitted(2, -127, start + SECOND / 4);
+		odometry.getPose(pose, start + 2 * SECOND);
+		assertEquals(0, pose.getX(), DELTA);
+		assertEquals(0, pose.getY(), DELTA);
+		assertEquals(0, pose.getHeading(), DELTA);
+		assertEquals(-300, pose.getLinearVelocity(), DELTA);
+	}
+
+	@Test
+	public void poseStandsStillBeforeTheFirstCommand() {
+		Odometry odometry = new Odometry(120, 300, 300);
+		Odometry.Pose pose = new Odometry.Pose();
+		long start = System.nanoTime() + 10 * SECOND;
+		odometry.emitted(1, 127, start);
+		odometry.emitted(2, 127, start);
+		odometry.getPose(pose, start - SECOND);
+		assertEquals(0, pose.getX(), DELTA);
+		assertEquals(0, pose.getLinearVelocity(), DELTA);
+	}
+
+	@Test
+	public void otherMotorsAreIgnored() {
+		Odometry odometry = new Odometry(120, 300, 300);
+		Odometry.Pose pose = new Odometry.Pose();
+		long start = System.nanoTime() + 10 * SECOND;
+		odometry.emitted(1, 127, start);
+		odometry.emitted(2, 127, start);
+		odometry.emitted(3, -127, start);
+		odometry.getPose(pose, start + SECOND);
+		assertEquals(300, pose.getX(), DELTA);
+	}
+}
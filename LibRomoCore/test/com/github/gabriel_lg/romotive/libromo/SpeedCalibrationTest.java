@@ -0,0 +1,125 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Checks the calibration tables and the calibration file format.
+ * @author Lambertus Gorter
+ *
+ */
+public class SpeedCalibrationTest {
+
+	private static SpeedCalibration calibration() {
+		SpeedCalibration calibration = new SpeedCalibration();
+		calibration.setProfile(1, 24, 0, false, new int[] { 64 }, new int[] { 40 });
+		calibration.setProfile(2, 20, -3, true, new int[] { 32, 96 }, new int[] { 16, 100 });
+		return calibration;
+	}
+
+	private static SpeedCalibration read(String text) throws IOException {
+		return SpeedCalibration.read(new ByteArrayInputStream(text.getBytes("US-ASCII")));
+	}
+
+	private static void assertSameTables(SpeedCalibration expected, SpeedCalibration actual) {
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			assertEquals(expected.getDeadZone(address), actual.getDeadZone(address));
+			assertEquals(expected.getTrim(address), actual.getTrim(address));
+			assertEquals(expected.isInverted(address), actual.isInverted(address));
+			for (int speed = CommandScheduler.SPEED_MAX_BACKWARD; speed <= CommandScheduler.SPEED_MAX_FORWARD; speed++) {
+				assertEquals(address + ":" + speed, expected.getSpeed(address, speed), actual.getSpeed(address, speed));
+			}
+		}
+	}
+
+	@Test
+	public void uncalibratedSendsSpeedsAsSet() {
+		SpeedCalibration calibration = new SpeedCalibration();
+		for (int speed = CommandScheduler.SPEED_MAX_BACKWARD; speed <= CommandScheduler.SPEED_MAX_FORWARD; speed++) {
+			assertEquals(speed, calibration.getSpeed(1, speed));
+		}
+	}
+
+	@Test
+	public void deadZoneIsSkipped() {
+		SpeedCalibration calibration = new SpeedCalibration();
+		calibration.setProfile(3, 30, 0, false, new int[0], new int[0]);
+		assertEquals(0, calibration.getSpeed(3, 0));
+		assertEquals(31, calibration.getSpeed(3, 1));
+		assertEquals(-31, calibration.getSpeed(3, -1));
+		assertEquals(127, calibration.getSpeed(3, 127));
+	}
+
+	@Test
+	public void writeThenReadGivesSameCalibration() throws IOException {
+		SpeedCalibration calibration = calibration();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		calibration.write(out);
+		SpeedCalibration read = SpeedCalibration.read(new ByteArrayInputStream(out.toByteArray()));
+		assertSameTables(calibration, read);
+	}
+
+	@Test
+	public void readSkipsComments() throws IOException {
+		SpeedCalibration read = read("# address deadzone trim inverted curve\n\n1 24 0 0 64:40 # left\n2 20 -3 1 32:16 96:100\n");
+		assertSameTables(calibration(), read);
+	}
+
+	@Test
+	public void invalidLineIsReported() throws IOException {
+		try {
+			read("1 24 0 0\n2 20 x 0\n");
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("line 2: "));
+			assertTrue(e.getCause() instanceof NumberFormatException);
+		}
+		try {
+			read("1 200 0 0\n");
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("line 1: "));
+			assertTrue(e.getCause() instanceof LibRomoRuntimeException);
+		}
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		SpeedCalibration calibration = calibration();
+		SpeedCalibration copy = calibration.copy();
+		calibration.setProfile(1, 0, 0, false, new int[0], new int[0]);
+		assertSameTables(calibration(), copy);
+	}
+}
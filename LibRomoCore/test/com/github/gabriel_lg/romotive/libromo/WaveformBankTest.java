@@ -0,0 +1,120 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Checks the WaveformBank against the encoder LibRomo started out with, which assembled every
+ * frame from two symbol templates while sending.
+ * @author Lambertus Gorter
+ *
+ */
+public class WaveformBankTest {
+	private static final short HI = Short.MAX_VALUE;
+	private static final short LO = Short.MIN_VALUE;
+	private static final short[] ONE = { HI, HI, HI, HI, HI, HI, HI, HI, LO, HI, LO, HI, LO, HI, LO, HI };
+	private static final short[] ZERO = { HI, LO, HI, LO, HI, LO, HI, LO, LO, LO, LO, LO, LO, LO, LO, LO };
+	private static final int FRAME = 12 * 16;
+
+	/**
+	 * The original encoder: a 0 start bit, 2 address bits, 8 speed bits and an even parity bit.
+	 */
+	private static short[] baselineFrame(int address, int speed) {
+		int cmdSpeed;
+		if (address != 2) cmdSpeed = 128 + speed;
+		else cmdSpeed = 128 - speed; //right motor is reversed
+		boolean parity = ((Integer.bitCount(address & 0x03) + Integer.bitCount(cmdSpeed & 0xff)) & 1) == 1;
+		int bits = (address & 0x03) << 9 | (cmdSpeed & 0xff) << 1 | (parity ? 1 : 0);
+		short[] frame = new short[FRAME];
+		for (int symbol = 0; symbol < 12; symbol++) {
+			boolean bit = (bits >> (11 - symbol) & 1) != 0;
+			System.arraycopy(bit ? ONE : ZERO, 0, frame, symbol * 16, 16);
+		}
+		return frame;
+	}
+
+	@Test
+	public void defaultFramesMatchBaselineEncoder() {
+		WaveformBank bank = new WaveformBank();
+		assertEquals(FRAME, LinkTiming.DEFAULT.getFrameShortSize());
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			for (int speed = CommandScheduler.SPEED_MAX_BACKWARD; speed <= CommandScheduler.SPEED_MAX_FORWARD; speed++) {
+				assertArrayEquals(address + ":" + speed, baselineFrame(address, speed), bank.getFrame(address, speed));
+			}
+		}
+	}
+
+	@Test
+	public void romoDescriptorMatchesDefault() {
+		WaveformBank bank = new WaveformBank();
+		WaveformBank compiled = new WaveformBank(LinkTiming.DEFAULT, ProtocolDescriptor.romo(), new SpeedCalibration());
+		for (int address = 1; address <= WaveformBank.ADDRESS_COUNT; address++) {
+			for (int speed = CommandScheduler.SPEED_MAX_BACKWARD; speed <= CommandScheduler.SPEED_MAX_FORWARD; speed++) {
+				assertArrayEquals(bank.getFrame(address, speed), compiled.getFrame(address, speed));
+			}
+		}
+	}
+
+	@Test
+	public void frameBufferHoldsFrame() {
+		WaveformBank bank = new WaveformBank();
+		ByteBuffer buffer = bank.getFrameBuffer(2, -40);
+		short[] frame = new short[buffer.remaining() / 2];
+		buffer.order(ByteOrder.nativeOrder()).asShortBuffer().get(frame);
+		assertArrayEquals(baselineFrame(2, -40), frame);
+	}
+
+	@Test
+	public void renderPutsGapsBetweenFrames() {
+		WaveformBank bank = new WaveformBank();
+		int[] addresses = { 1, 2 };
+		int[] speeds = { 10, -10 };
+		int gap = 40;
+		short[] buffer = new short[bank.renderSize(2, gap, true)];
+		int written = bank.render(addresses, speeds, 2, gap, true, buffer);
+		assertEquals(2 * (FRAME + gap), written);
+		short[] expected = new short[written];
+		System.arraycopy(baselineFrame(1, 10), 0, expected, 0, FRAME);
+		System.arraycopy(baselineFrame(2, -10), 0, expected, FRAME + gap, FRAME);
+		assertArrayEquals(expected, buffer);
+	}
+
+	@Test
+	public void calibrationIsFoldedIntoFrames() {
+		SpeedCalibration calibration = new SpeedCalibration();
+		calibration.setProfile(1, 0, 0, true, new int[0], new int[0]);
+		WaveformBank bank = new WaveformBank(LinkTiming.DEFAULT, ProtocolDescriptor.romo(), calibration);
+		assertArrayEquals(baselineFrame(1, -50), bank.getFrame(1, 50));
+		assertArrayEquals(baselineFrame(2, 50), bank.getFrame(2, 50));
+	}
+}
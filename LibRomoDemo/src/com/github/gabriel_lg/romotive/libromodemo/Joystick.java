@@ -9,11 +9,7 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 
-import com.github.gabriel_lg.romotive.libromo.MotorControl;
-
 public class Joystick extends View {
-	private int leftSpeed = MotorControl.SPEED_STOP;
-	private int rightSpeed = MotorControl.SPEED_STOP;
 	private boolean cruiseControl = false;
 	private JoystickPositionChangedListener listener = null;
 	private float posX = 0;
@@ -81,15 +77,8 @@ public class Joystick extends View {
 			posY = Math.min(1, posY);
 		}
 
-		double power = -posY;
-		double leftRatio = posX<0 ? 2*posX + 1 : 1;
-		double rightRatio = posX>0 ? -2*posX + 1 : 1;
-
-		
-		leftSpeed = (int)(leftRatio * power * 127);
-		rightSpeed = (int)(rightRatio * power * 127);
 		if(listener != null) {
-			listener.onPositionChanged( leftSpeed, rightSpeed);
+			listener.onPositionChanged(posX, -posY);
 		}
 
 		invalidate();
@@ -104,7 +93,11 @@ public class Joystick extends View {
 	}
 	
 	public interface JoystickPositionChangedListener {
-		public void onPositionChanged(int leftSpeed, int rightSpeed);
+		/**
+		 * @param x -1 (left) to 1 (right)
+		 * @param y -1 (down) to 1 (up)
+		 */
+		public void onPositionChanged(float x, float y);
 	}
 
 	public void setCruiseControl(boolean b) {
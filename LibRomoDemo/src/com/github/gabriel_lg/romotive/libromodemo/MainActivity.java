@@ -7,12 +7,17 @@ import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.Toast;
 
+import com.github.gabriel_lg.romotive.libromo.DifferentialDrive;
 import com.github.gabriel_lg.romotive.libromo.MotorControl;
 import com.github.gabriel_lg.romotive.libromo.MotorControl.RomoConnectionListener;
 import com.github.gabriel_lg.romotive.libromodemo.Joystick.JoystickPositionChangedListener;
 
 public class MainActivity extends Activity {
+    //approximate geometry of the Romo, only the ratio matters when driving by joystick
+    private static final int WHEEL_BASE_MM = 120;
+    private static final int MAX_WHEEL_SPEED_MM_PER_S = 300;
     private MotorControl control;
+    private DifferentialDrive drive;
     private Joystick joystick;
     private CheckBox checkbox;
     @Override
@@ -22,6 +27,8 @@ public class MainActivity extends Activity {
         control = new MotorControl(this);
         control.setRefreshInterval(1000);
         control.setInterCommandGap(12);
+        control.setSkipUnchanged(true);
+        drive = new DifferentialDrive(control.getScheduler(), WHEEL_BASE_MM, MAX_WHEEL_SPEED_MM_PER_S);
         control.setConnectionListener(new RomoConnectionListener() {
 			public void onConnectionChanged(boolean connected) {
 				Toast.makeText(MainActivity.this, "Romo "+(connected?"connected":"disconnected"), Toast.LENGTH_SHORT).show();
@@ -29,9 +36,9 @@ public class MainActivity extends Activity {
 		});
         joystick = (Joystick)findViewById(R.id.joystick1);
         joystick.setPositionChangedListener(new JoystickPositionChangedListener() {
-			public void onPositionChanged(int leftSpeed, int rightSpeed) {
-				control.setLeftRightSpeed(leftSpeed, rightSpeed);
-				control.setAuxSpeed(MotorControl.SPEED_STOP);
+			public void onPositionChanged(float x, float y) {
+				//stick up drives forward, stick right turns right (clockwise)
+				drive.drive((int) (y * drive.getMaxLinearSpeed()), (int) (-x * drive.getMaxAngularSpeed()));
 			}
 		});
         joystick.setCruiseControl(true);
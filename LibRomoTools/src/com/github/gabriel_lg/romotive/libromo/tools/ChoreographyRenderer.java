@@ -0,0 +1,327 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.github.gabriel_lg.romotive.libromo.CommandSequence;
+import com.github.gabriel_lg.romotive.libromo.LibRomoException;
+import com.github.gabriel_lg.romotive.libromo.LibRomoRuntimeException;
+import com.github.gabriel_lg.romotive.libromo.LinkTiming;
+import com.github.gabriel_lg.romotive.libromo.SequencePlan;
+import com.github.gabriel_lg.romotive.libromo.WaveformBank;
+
+/**
+ * Renders a choreography, a timeline of commands, into an audio file that drives the Romo
+ * when played on the headphone jack: stereo 16 bit PCM, raw or WAV, at the sample rate and with
+ * the symbol timing the timeline is compiled for (8 kHz and the symbols of the Romo protocol by
+ * default). The frames are taken from a WaveformBank, so they are exactly the frames
+ * MotorControl sends with that timing.
+ * <p>
+ * The timeline is compiled into a SequencePlan, which places every command at its sample.
+ * The audio is split into chunks at frame boundaries, rendered in parallel on a fork-join
+ * pool and written straight to their place in the file, so long shows neither take long nor
+ * need to fit in memory.
+ * <p>
+ * A timeline file has a command per line: the time in milliseconds (fractions allowed), the
+ * motor address (1, 2 or 3) and the speed. Anything from a # to the end of the line is a
+ * comment, lines without a command are skipped.
+ * <p>
+ * Run with: java -cp target/tools.jar com.github.gabriel_lg.romotive.libromo.tools.ChoreographyRenderer
+ * -in timeline.txt -out show.wav [-gap 0] [-rate 8000] [-symbol 1000] [-edge 50] [-raw] [-threads n]
+ * @author Lambertus Gorter
+ *
+ */
+public class ChoreographyRenderer {
+	private static final int WAV_HEADER_SIZE = 44;
+	//chunks are split down to this size, 2 MB of audio
+	private static final int CHUNK_SHORTS = 1 << 20;
+	private static final long MAX_WAV_DATA_SIZE = 0xffffffffL - WAV_HEADER_SIZE;
+
+	private final ForkJoinPool pool;
+	//the bank of the timing last rendered for
+	private volatile WaveformBank waveforms = new WaveformBank();
+
+	/**
+	 * Create a renderer on a pool of its own, with a thread per processor.
+	 */
+	public ChoreographyRenderer() {
+		this(new ForkJoinPool());
+	}
+
+	/**
+	 * Create a renderer.
+	 * @param pool the pool to render the chunks on
+	 */
+	public ChoreographyRenderer(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Read a timeline file.
+	 * @param file
+	 * @return the commands of the timeline
+	 * @throws LibRomoException if the file cannot be read or a line is invalid
+	 */
+	public static CommandSequence readTimeline(File file) throws LibRomoException {
+		CommandSequence sequence = new CommandSequence();
+		BufferedReader reader = null;
+		int number = 0;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				int comment = line.indexOf('#');
+				if (comment >= 0) line = line.substring(0, comment);
+				line = line.trim();
+				if (line.length() == 0) continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length != 3) throw new LibRomoException(file + ":" + number + ": expected time, address and speed");
+				long microseconds = Math.round(Double.parseDouble(fields[0]) * 1000);
+				sequence.add(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), microseconds);
+			}
+		} catch (IOException e) {
+			throw new LibRomoException("Cannot read " + file, e);
+		} catch (NumberFormatException e) {
+			throw new LibRomoException(file + ":" + number + ": " + e.getMessage(), e);
+		} catch (LibRomoRuntimeException e) {
+			throw new LibRomoException(file + ":" + number + ": " + e.getMessage(), e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * Render a plan into a file. An existing file is overwritten.
+	 * @param plan
+	 * @param file
+	 * @param wav true to write a WAV file, false to write raw little endian PCM
+	 * @return the number of samples written
+	 * @throws LibRomoException if the file cannot be written or is too long for WAV
+	 */
+	public long render(SequencePlan plan, File file, boolean wav) throws LibRomoException {
+		LinkTiming timing = plan.getTiming();
+		WaveformBank bank = waveforms;
+		if (!bank.getTiming().equals(timing)) waveforms = bank = new WaveformBank(timing);
+		long shorts = plan.getDurationSamples() * LinkTiming.CHANNELS;
+		if (wav && shorts * 2 > MAX_WAV_DATA_SIZE)
+			throw new LibRomoException("Too long for a WAV file: " + plan.getDurationSamples() + " samples");
+		RandomAccessFile output = null;
+		try {
+			output = new RandomAccessFile(file, "rw");
+			output.setLength(0);
+			FileChannel channel = output.getChannel();
+			long offset = 0;
+			if (wav) {
+				writeFully(channel, wavHeader(timing.getSampleRate(), shorts * 2), 0);
+				offset = WAV_HEADER_SIZE;
+			}
+			pool.invoke(new Chunk(plan, bank, channel, offset, 0, shorts));
+		} catch (IOException e) {
+			throw new LibRomoException("Cannot write " + file, e);
+		} catch (LibRomoRuntimeException e) {
+			if (e.getCause() instanceof IOException) throw new LibRomoException("Cannot write " + file, e.getCause());
+			throw e;
+		} finally {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return shorts / LinkTiming.CHANNELS;
+	}
+
+	/**
+	 * A part of the audio, from a frame boundary up to the next, written to its place in the
+	 * file. Large chunks are split in two, moving the middle to the start of the frame that
+	 * would be cut.
+	 */
+	private class Chunk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final SequencePlan plan;
+		private final WaveformBank bank;
+		private final FileChannel channel;
+		private final long offset;
+		private final long from;
+		private final long to;
+
+		/**
+		 * @param plan
+		 * @param bank encoded for the timing of the plan
+		 * @param channel
+		 * @param offset of the audio in the file, in bytes
+		 * @param from first short of the chunk
+		 * @param to end of the chunk, in shorts
+		 */
+		Chunk(SequencePlan plan, WaveformBank bank, FileChannel channel, long offset, long from, long to) {
+			this.plan = plan;
+			this.bank = bank;
+			this.channel = channel;
+			this.offset = offset;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > CHUNK_SHORTS) {
+				long middle = frameBoundary(from + (to - from) / 2);
+				if (middle > from && middle < to) {
+					invokeAll(new Chunk(plan, bank, channel, offset, from, middle), new Chunk(plan, bank, channel, offset, middle, to));
+					return;
+				}
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) (to - from) * 2).order(ByteOrder.LITTLE_ENDIAN);
+			ShortBuffer audio = buffer.asShortBuffer();
+			for (int i = firstCommandFrom(from); i < plan.size() && startShort(i) < to; i++) {
+				audio.position((int) (startShort(i) - from));
+				audio.put(bank.getFrame(plan.getAddress(i), plan.getSpeed(i)));
+			}
+			try {
+				writeFully(channel, buffer, offset + from * 2);
+			} catch (IOException e) {
+				throw new LibRomoRuntimeException("Cannot write audio", e);
+			}
+		}
+
+		/**
+		 * @param position in shorts
+		 * @return the position, or the start of the frame playing at the position
+		 */
+		private long frameBoundary(long position) {
+			int i = firstCommandFrom(position + 1) - 1;
+			if (i >= 0 && startShort(i) + plan.getTiming().getFrameShortSize() > position) return startShort(i);
+			return position;
+		}
+
+		/**
+		 * @param position in shorts
+		 * @return the index of the first command starting at or after the position
+		 */
+		private int firstCommandFrom(long position) {
+			int low = 0;
+			int high = plan.size();
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (startShort(middle) < position) low = middle + 1;
+				else high = middle;
+			}
+			return low;
+		}
+
+		private long startShort(int index) {
+			return plan.getStartSample(index) * LinkTiming.CHANNELS;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) position += channel.write(buffer, position);
+	}
+
+	private static ByteBuffer wavHeader(int sampleRate, long dataSize) {
+		ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(ascii("RIFF"));
+		header.putInt((int) (WAV_HEADER_SIZE - 8 + dataSize));
+		header.put(ascii("WAVE"));
+		header.put(ascii("fmt "));
+		header.putInt(16);
+		header.putShort((short) 1); //PCM
+		header.putShort((short) LinkTiming.CHANNELS);
+		header.putInt(sampleRate);
+		header.putInt(sampleRate * LinkTiming.CHANNELS * 2);
+		header.putShort((short) (LinkTiming.CHANNELS * 2));
+		header.putShort((short) 16);
+		header.put(ascii("data"));
+		header.putInt((int) dataSize);
+		header.flip();
+		return header;
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) s.charAt(i);
+		return bytes;
+	}
+
+	public static void main(String[] args) throws LibRomoException {
+		String in = null;
+		String out = null;
+		long gapMs = 0;
+		int rate = WaveformBank.SAMPLE_RATE;
+		int symbolMicros = LinkTiming.DEFAULT_SYMBOL_MICROS;
+		int clockHighPercent = LinkTiming.DEFAULT_CLOCK_HIGH_PERCENT;
+		boolean wav = true;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-raw")) wav = false;
+			else if (i + 1 == args.length) throw new IllegalArgumentException("Missing value: " + args[i]);
+			else if (args[i].equals("-in")) in = args[++i];
+			else if (args[i].equals("-out")) out = args[++i];
+			else if (args[i].equals("-gap")) gapMs = Long.parseLong(args[++i]);
+			else if (args[i].equals("-rate")) rate = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-symbol")) symbolMicros = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-edge")) clockHighPercent = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+			else throw new IllegalArgumentException("Unknown option: " + args[i]);
+		}
+		if (in == null || out == null) {
+			System.err.println("Usage: ChoreographyRenderer -in timeline.txt -out show.wav [-gap 0] [-rate 8000] [-symbol 1000] [-edge 50] [-raw] [-threads n]");
+			System.exit(1);
+		}
+		long start = System.nanoTime();
+		LinkTiming timing = new LinkTiming(rate, symbolMicros, clockHighPercent);
+		SequencePlan plan = readTimeline(new File(in)).compile(timing, gapMs);
+		int delayed = 0;
+		for (int i = 0; i < plan.size(); i++) {
+			if (plan.getStartSample(i) != plan.getRequestedSample(i)) delayed++;
+		}
+		long samples = new ChoreographyRenderer(new ForkJoinPool(threads)).render(plan, new File(out), wav);
+		System.out.printf("%d commands (%d delayed by a previous command), %.1f s of audio rendered in %.2f s%n",
+				plan.size(), delayed, samples / (double) rate, (System.nanoTime() - start) / 1e9);
+	}
+}
@@ -0,0 +1,135 @@
+/* Copyright (c) 2012, Lambertus Gorter <l.gorter@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The names of its contributors may not be used to endorse or promote
+ *     products derived from this software without specific prior written
+ *     permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.gabriel_lg.romotive.libromo.tools;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.github.gabriel_lg.romotive.libromo.CommandSequence;
+import com.github.gabriel_lg.romotive.libromo.FlightLog;
+import com.github.gabriel_lg.romotive.libromo.LibRomoException;
+import com.github.gabriel_lg.romotive.libromo.LinkTiming;
+import com.github.gabriel_lg.romotive.libromo.SequencePlan;
+
+/**
+ * Replays a dump of the FlightRecorder: lists the commands that were sent, as a timeline
+ * the ChoreographyRenderer reads, and/or feeds them back through the encoder into a WAV file,
+ * so what the Romo got can be played again, or decoded and inspected.
+ * <p>
+ * The commands keep their recorded spacing, except for idle stretches (a disconnect, say),
+ * which are shortened to the maximum silence. Commands written together in a single batch
+ * share their recorded time, and are rendered back to back like they were sent.
+ * <p>
+ * The audio is encoded with the link timing and inter-command gap stored in the dump (dumps of
+ * the first version have neither, they are replayed with LinkTiming.DEFAULT); -gap overrides
+ * the gap. The dump does not store the protocol, the audio is always of the Romo protocol.
+ * <p>
+ * Run with: java -cp target/tools.jar com.github.gabriel_lg.romotive.libromo.tools.FlightReplay
+ * -in dump.bin [-out replay.wav] [-raw] [-maxsilence 1000] [-gap ms]
+ * @author Lambertus Gorter
+ *
+ */
+public class FlightReplay {
+
+	/**
+	 * Read a dump of a FlightRecorder.
+	 * @param file
+	 * @return
+	 * @throws LibRomoException if the file cannot be read or is not a dump
+	 */
+	public static FlightLog read(File file) throws LibRomoException {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			return FlightLog.read(in);
+		} catch (IOException e) {
+			throw new LibRomoException("Cannot read " + file, e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Turn the commands of a log into a sequence, starting at the first command. Records of the
+	 * link itself (address 0) are left out.
+	 * @param log
+	 * @param maxSilenceMs the longest time kept between two commands
+	 * @return
+	 */
+	public static CommandSequence toSequence(FlightLog log, long maxSilenceMs) {
+		CommandSequence sequence = new CommandSequence();
+		long time = 0;
+		long previous = -1;
+		for (int i = 0; i < log.size(); i++) {
+			if (log.getAddress(i) == 0) continue;
+			long micros = log.getTimeMicros(i);
+			if (previous >= 0) time += Math.max(0, Math.min(micros - previous, maxSilenceMs * 1000));
+			previous = micros;
+			sequence.add(log.getAddress(i), log.getSpeed(i), time);
+		}
+		return sequence;
+	}
+
+	public static void main(String[] args) throws LibRomoException {
+		String in = null;
+		String out = null;
+		boolean wav = true;
+		long maxSilenceMs = 1000;
+		long gapMs = -1;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-raw")) wav = false;
+			else if (i + 1 == args.length) throw new IllegalArgumentException("Missing value: " + args[i]);
+			else if (args[i].equals("-in")) in = args[++i];
+			else if (args[i].equals("-out")) out = args[++i];
+			else if (args[i].equals("-maxsilence")) maxSilenceMs = Long.parseLong(args[++i]);
+			else if (args[i].equals("-gap")) gapMs = Long.parseLong(args[++i]);
+			else throw new IllegalArgumentException("Unknown option: " + args[i]);
+		}
+		if (in == null) {
+			System.err.println("Usage: FlightReplay -in dump.bin [-out replay.wav] [-raw] [-maxsilence 1000] [-gap ms]");
+			System.exit(1);
+		}
+		FlightLog log = read(new File(in));
+		System.out.printf("# recorded from %tc%n", log.getWallClockMillis());
+		System.out.print(log);
+		if (out != null) {
+			LinkTiming timing = log.getTiming();
+			if (gapMs < 0) gapMs = log.getInterCommandGap();
+			SequencePlan plan = toSequence(log, maxSilenceMs).compile(timing, gapMs);
+			long samples = new ChoreographyRenderer().render(plan, new File(out), wav);
+			System.out.printf("# %d commands, %.1f s of audio written to %s%n", plan.size(), samples / (double) timing.getSampleRate(), out);
+		}
+	}
+}